@@ -0,0 +1,570 @@
+package nachos.threads;
+import nachos.machine.*;
+import java.util.Arrays;
+
+/**
+ * A priority scheduler that keeps all of its state in primitive arrays.
+ *
+ * <p>
+ * Threads are picked as by PriorityScheduler: highest effective priority
+ * first, first come first served within a priority, and a thread holding a
+ * transferPriority queue runs at no less than the effective priority of any
+ * thread waiting on it. Instead of a ThreadState object per
+ * thread, a thread is an int handle into parallel arrays holding its
+ * priority, effective priority, the held queue its best donation comes
+ * from, the queue it waits on and its links on that queue's wait list.
+ * A queue is likewise a handle into arrays holding the head and tail of
+ * each of its levels, a bitmap of occupied levels and its resource holder.
+ * KThread.schedulingState holds only the thread's handle, and
+ * getThreadState() resolves it. The handle is boxed once per slot and the
+ * box is reused by every KThread that later gets that slot, and
+ * threadFinished() gives the slot back.
+ *
+ * <p>
+ * It differs from PriorityScheduler in two ways:
+ *
+ * <ul>
+ * <li> Priorities run from priorityMinimum to priorityMaximum (0 to 7),
+ *      one bit of an int bitmap per level. A PriorityScheduler subclass
+ *      may widen its range by overriding getPriorityMaximum(); this class
+ *      cannot.
+ * <li> A thread that waits on a transferPriority queue while it has no
+ *      holder donates to whichever thread later holds it. PriorityScheduler
+ *      only passes on donations made while the queue had a holder, so
+ *      there such a waiter donates nothing to the next holder. Queues that
+ *      are acquired before anyone waits on them, as locks are, behave the
+ *      same under both.
+ * </ul>
+ *
+ * <p>
+ * A thread costs about 36 bytes, a third of a PriorityScheduler ThreadState,
+ * and nothing is allocated per operation, so simulations can run millions
+ * of threads with the handles from newThread(). The price is that, as in
+ * Nachos, a thread may wait on only one queue at a time. Donations are not
+ * recorded one per donor: a holder's effective priority is the greater of
+ * its priority and the top occupied level of each queue it holds, and is
+ * only recomputed when the queue its best donation came from loses ground.
+ *
+ * <p>
+ * There is no tracing, verification or metrics, and no subclasses for
+ * lottery or stride scheduling; use PriorityScheduler for those.
+ */
+public class CompactPriorityScheduler extends Scheduler
+{
+    /**
+     * Construct a new CompactPriorityScheduler running under Nachos.
+     */
+    public CompactPriorityScheduler() {
+        this(new PriorityScheduler.NachosHost());
+    }
+
+    /**
+     * Construct a new CompactPriorityScheduler.
+     *
+     * @param host  Environment providing the interrupt guard.
+     */
+    public CompactPriorityScheduler(PriorityScheduler.Host host) {
+        this.host = host;
+    }
+
+    /**
+     * Allocate a new compact thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should transfer
+     * priority from waiting thread to the owning thread.
+     * @return a new compact thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        boolean intStatus = host.disableInterrupts();
+        int q = freeQueues;
+        if(q != kNone) {
+            freeQueues = nextHeld[q];
+        } else {
+            if(numQueues == holder.length) { growQueues(); }
+            q = numQueues++;
+        }
+        int first = q * kNumLevels;
+        Arrays.fill(levelHeads, first, first + kNumLevels, kNone);
+        Arrays.fill(levelTails, first, first + kNumLevels, kNone);
+        levelBitmap[q] = 0;
+        holder[q] = kNone;
+        prevHeld[q] = kNone;
+        nextHeld[q] = kNone;
+        transfer[q] = transferPriority;
+        host.restoreInterrupts(intStatus);
+        return new CompactQueue(q);
+    }
+
+    /**
+     * Return a queue's handle for reuse. The queue must be drained: no
+     * thread waiting on it and no resource holder. The caller must not use
+     * it afterwards.
+     *
+     * @param queue A queue made by this scheduler.
+     */
+    public void freeThreadQueue(CompactQueue queue) {
+        Lib.assertTrue(host.interruptsDisabled());
+        int q = queue.handle;
+        Lib.assertTrue(q != kNone && levelBitmap[q] == 0 && holder[q] == kNone);
+        queue.handle = kNone;
+        nextHeld[q] = freeQueues;
+        freeQueues = q;
+    }
+
+    /**
+     * Allocate a handle for a thread that is not a KThread, at the default
+     * priority.
+     *
+     * @return the new thread's handle.
+     */
+    public int newThread() {
+        Lib.assertTrue(host.interruptsDisabled());
+        int t = freeThreads;
+        if(t != kNone) {
+            freeThreads = nextWaiter[t];
+        } else {
+            if(numThreads == priority.length) { growThreads(); }
+            t = numThreads++;
+        }
+        priority[t] = PriorityScheduler.priorityDefault;
+        effective[t] = PriorityScheduler.priorityDefault;
+        bestDonor[t] = kNone;
+        waitQueue[t] = kNone;
+        prevWaiter[t] = kNone;
+        nextWaiter[t] = kNone;
+        heldQueues[t] = kNone;
+        numLiveThreads++;
+        return t;
+    }
+
+    /**
+     * Return a handle from newThread() for reuse. The thread must not be
+     * waiting on or holding any queue.
+     *
+     * @param t Handle of a thread that has finished.
+     */
+    public void freeThread(int t) {
+        Lib.assertTrue(host.interruptsDisabled());
+        Lib.assertTrue(
+            threads[t] == null
+            && waitQueue[t] == kNone
+            && heldQueues[t] == kNone
+            && effective[t] != kNone
+        );
+        effective[t] = kNone;
+        nextWaiter[t] = freeThreads;
+        freeThreads = t;
+        numLiveThreads--;
+    }
+
+    /**
+     * Give back the handle of a KThread that has finished, so that its slot
+     * is reused and this scheduler no longer refers to the thread. To be
+     * called from KThread.finish() once the thread's joiners have been
+     * woken. Any queue the thread still holds, such as its join queue, is
+     * left with no holder. The thread must not be waiting on a queue, and
+     * must not be passed to this scheduler again.
+     *
+     * @param thread    A thread that has finished running.
+     */
+    public void threadFinished(KThread thread) {
+        Lib.assertTrue(host.interruptsDisabled());
+        if(thread.schedulingState == null) { return; }
+        int t = getThreadState(thread);
+        Lib.assertTrue(waitQueue[t] == kNone);
+        while(heldQueues[t] != kNone) {
+            setHolder(heldQueues[t], kNone);
+        }
+        threads[t] = null;
+        thread.schedulingState = null;
+        freeThread(t);
+    }
+
+    /** Return the number of thread handles in use. */
+    public int getNumThreads() {
+        return numLiveThreads;
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(host.interruptsDisabled());
+        return priority[getThreadState(thread)];
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(host.interruptsDisabled());
+        return effective[getThreadState(thread)];
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        setPriority(getThreadState(thread), priority);
+    }
+
+    /** Return the priority of the thread with handle t. */
+    public int getPriority(int t) {
+        Lib.assertTrue(host.interruptsDisabled());
+        return priority[t];
+    }
+
+    /** Return the effective priority of the thread with handle t. */
+    public int getEffectivePriority(int t) {
+        Lib.assertTrue(host.interruptsDisabled());
+        return effective[t];
+    }
+
+    /**
+     * Set the priority of the thread with handle t, moving it and the
+     * holders it donates to if its effective priority changes.
+     */
+    public void setPriority(int t, int inPriority) {
+        Lib.assertTrue(host.interruptsDisabled());
+        Lib.assertTrue(
+            inPriority >= PriorityScheduler.priorityMinimum
+            && inPriority <= PriorityScheduler.priorityMaximum
+        );
+        if(priority[t] == inPriority) { return; }
+        priority[t] = inPriority;
+        updateEffectivePriority(t);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = host.disableInterrupts();
+        int t = getThreadState(KThread.currentThread());
+        boolean changed = priority[t] < PriorityScheduler.priorityMaximum;
+        if(changed) { setPriority(t, priority[t] + 1); }
+        host.restoreInterrupts(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = host.disableInterrupts();
+        int t = getThreadState(KThread.currentThread());
+        boolean changed = priority[t] > PriorityScheduler.priorityMinimum;
+        if(changed) { setPriority(t, priority[t] - 1); }
+        host.restoreInterrupts(intStatus);
+        return changed;
+    }
+
+    /**
+     * Return the handle of the scheduling state of the specified thread,
+     * allocating one the first time. schedulingState is an Object, so it
+     * holds the slot's box from handleBoxes, made the first time the slot
+     * is used by a KThread.
+     *
+     * @param   thread  The thread whose scheduling state to return.
+     * @return the thread's handle.
+     */
+    protected int getThreadState(KThread thread) {
+        if(thread.schedulingState == null) {
+            int t = newThread();
+            threads[t] = thread;
+            if(handleBoxes[t] == null) { 
+                handleBoxes[t] = Integer.valueOf(t); 
+            }
+            thread.schedulingState = handleBoxes[t];
+        }
+        return ((Integer)thread.schedulingState).intValue();
+    }
+
+    /**
+     * CompactQueue inner class. A ThreadQueue that is a handle into the
+     * scheduler's queue arrays.
+     */
+    public class CompactQueue extends ThreadQueue
+    {
+        CompactQueue(int handle) {
+            this.handle = handle;
+        }
+
+        public void waitForAccess(KThread thread) {
+            waitForAccess(getThreadState(thread));
+        }
+
+        /**
+         * Enqueue a thread by handle, donating its effective priority to the
+         * holder if this queue transfers priority.
+         *
+         * @param t handle of a thread not waiting on any queue.
+         */
+        public void waitForAccess(int t) {
+            Lib.assertTrue(host.interruptsDisabled());
+            int q = handle;
+            Lib.assertTrue(waitQueue[t] == kNone && holder[q] != t);
+            waitQueue[t] = q;
+            append(q, t);
+            updateEffectivePriority(getAffectedHolder(q));
+        }
+
+        public void acquire(KThread thread) {
+            acquire(getThreadState(thread));
+        }
+
+        /**
+         * Give the resource served by this queue, which must have no
+         * waiters, to a thread by handle.
+         */
+        public void acquire(int t) {
+            Lib.assertTrue(host.interruptsDisabled());
+            Lib.assertTrue(levelBitmap[handle] == 0);
+            if(transfer[handle]) { setHolder(handle, t); }
+        }
+
+        public KThread nextThread() {
+            int t = nextThreadHandle();
+            return t == kNone ? null : threads[t];
+        }
+
+        /**
+         * Remove the next thread from the queue by priority and make it the
+         * resource holder.
+         *
+         * @return the handle of the new resource holder, or kNone if the
+         *         queue was empty.
+         */
+        public int nextThreadHandle() {
+            Lib.assertTrue(host.interruptsDisabled());
+            int q = handle;
+            int top = getTopLevel(q);
+            int t = top == kNone ? kNone : levelHeads[q * kNumLevels + top];
+            if(t != kNone) {
+                unlink(q, t);
+                waitQueue[t] = kNone;
+            }
+            if(transfer[q]) {
+                int old = holder[q];
+                setHolder(q, t);
+                if(old != kNone && bestDonor[old] == q) {
+                    updateEffectivePriority(old);
+                }
+                updateEffectivePriority(getAffectedHolder(q));
+            }
+            return t;
+        }
+
+        /** Return the handle of the resource holder, or kNone. */
+        public int getHolder() {
+            return holder[handle];
+        }
+
+        /**
+         * Dump contents of this queue. Used for debugging. Does nothing
+         * unless the dbgPSched debug flag is set.
+         */
+        public void print() {
+            if(!Lib.test(PriorityScheduler.dbgPSched)) { return; }
+            String dumpString =
+                "\nCompact queue " + handle
+                + " transferPriority? " + transfer[handle]
+                + " resourceHolder: " + holder[handle];
+            for(int level = kNumLevels - 1; level >= 0; level--) {
+                int t = levelHeads[handle * kNumLevels + level];
+                if(t == kNone) { continue; }
+                dumpString += "\nP" + level;
+                for(; t != kNone; t = nextWaiter[t]) {
+                    dumpString += "-->" + t + "(" + priority[t] + "/" + effective[t] + ")";
+                }
+            }
+            Lib.debug(PriorityScheduler.dbgPSched, dumpString);
+        }
+
+        /** Index of this queue in the queue arrays, kNone once freed */
+        int handle;
+    } // End of CompactQueue class
+
+    /**
+     * Recompute the effective priority of t and, while it changes, move the
+     * thread on the queue it waits on and carry on to that queue's holder.
+     *
+     * @param t Handle of a thread whose priority or held queues changed, or
+     *          kNone.
+     */
+    private void updateEffectivePriority(int t) {
+        while(t != kNone) {
+            int ep = priority[t];
+            int donor = kNone;
+            for(int q = heldQueues[t]; q != kNone; q = nextHeld[q]) {
+                int top = getTopLevel(q);
+                if(top > ep) {
+                    ep = top;
+                    donor = q;
+                }
+            }
+            bestDonor[t] = donor;
+            if(ep == effective[t]) { return; }
+
+            int q = waitQueue[t];
+            if(q != kNone) { unlink(q, t); }
+            effective[t] = ep;
+            if(q == kNone) { return; }
+            append(q, t);
+            t = getAffectedHolder(q);
+        }
+    }
+
+    /**
+     * Return the holder of q if a change to q's waiters may change its
+     * effective priority: q transfers priority and its top waiter is now
+     * above the holder, or q is where the holder's best donation came from.
+     *
+     * @return a thread handle, or kNone.
+     */
+    private int getAffectedHolder(int q) {
+        int h = holder[q];
+        if(!transfer[q] || h == kNone) { return kNone; }
+        if(getTopLevel(q) <= effective[h] && bestDonor[h] != q) { return kNone; }
+        return h;
+    }
+
+    /** Return the highest occupied level of q, or kNone if it is empty. */
+    private int getTopLevel(int q) {
+        int bits = levelBitmap[q];
+        return bits == 0 ? kNone : Integer.SIZE - 1 - Integer.numberOfLeadingZeros(bits);
+    }
+
+    /** Append t to the tail of q's level for its effective priority. */
+    private void append(int q, int t) {
+        int level = effective[t];
+        int slot = q * kNumLevels + level;
+        int tail = levelTails[slot];
+        prevWaiter[t] = tail;
+        nextWaiter[t] = kNone;
+        if(tail == kNone) {
+            levelHeads[slot] = t;
+        } else {
+            nextWaiter[tail] = t;
+        }
+        levelTails[slot] = t;
+        levelBitmap[q] |= 1 << level;
+    }
+
+    /** Unlink t from q's level for its effective priority. */
+    private void unlink(int q, int t) {
+        int level = effective[t];
+        int slot = q * kNumLevels + level;
+        int prev = prevWaiter[t];
+        int next = nextWaiter[t];
+        if(prev == kNone) {
+            levelHeads[slot] = next;
+        } else {
+            nextWaiter[prev] = next;
+        }
+        if(next == kNone) {
+            levelTails[slot] = prev;
+        } else {
+            prevWaiter[next] = prev;
+        }
+        prevWaiter[t] = kNone;
+        nextWaiter[t] = kNone;
+        if(levelHeads[slot] == kNone) { levelBitmap[q] &= ~(1 << level); }
+    }
+
+    /** Make t, or no thread if kNone, the holder of transferPriority q. */
+    private void setHolder(int q, int t) {
+        int old = holder[q];
+        if(old == t) { return; }
+        if(old != kNone) {
+            int prev = prevHeld[q];
+            int next = nextHeld[q];
+            if(prev == kNone) {
+                heldQueues[old] = next;
+            } else {
+                nextHeld[prev] = next;
+            }
+            if(next != kNone) { prevHeld[next] = prev; }
+        }
+        holder[q] = t;
+        prevHeld[q] = kNone;
+        nextHeld[q] = kNone;
+        if(t != kNone) {
+            int first = heldQueues[t];
+            nextHeld[q] = first;
+            if(first != kNone) { prevHeld[first] = q; }
+            heldQueues[t] = q;
+        }
+    }
+
+    /** Double the capacity of every per-thread array. */
+    private void growThreads() {
+        int size = priority.length * 2;
+        priority = Arrays.copyOf(priority, size);
+        effective = Arrays.copyOf(effective, size);
+        bestDonor = Arrays.copyOf(bestDonor, size);
+        waitQueue = Arrays.copyOf(waitQueue, size);
+        prevWaiter = Arrays.copyOf(prevWaiter, size);
+        nextWaiter = Arrays.copyOf(nextWaiter, size);
+        heldQueues = Arrays.copyOf(heldQueues, size);
+        threads = Arrays.copyOf(threads, size);
+        handleBoxes = Arrays.copyOf(handleBoxes, size);
+    }
+
+    /** Double the capacity of every per-queue array. */
+    private void growQueues() {
+        int size = holder.length * 2;
+        levelHeads = Arrays.copyOf(levelHeads, size * kNumLevels);
+        levelTails = Arrays.copyOf(levelTails, size * kNumLevels);
+        levelBitmap = Arrays.copyOf(levelBitmap, size);
+        holder = Arrays.copyOf(holder, size);
+        prevHeld = Arrays.copyOf(prevHeld, size);
+        nextHeld = Arrays.copyOf(nextHeld, size);
+        transfer = Arrays.copyOf(transfer, size);
+    }
+
+    /** Environment this scheduler runs in */
+    protected final PriorityScheduler.Host host;
+
+    /* Per-thread state, indexed by thread handle. */
+
+    /** Inherent and effective priority */
+    private int[] priority = new int[kInitialCapacity];
+    private int[] effective = new int[kInitialCapacity];
+
+    /** Held queue the effective priority came from, kNone if its own */
+    private int[] bestDonor = new int[kInitialCapacity];
+
+    /** Queue waited on, and neighbours on its level; nextWaiter also links free handles */
+    private int[] waitQueue = new int[kInitialCapacity];
+    private int[] prevWaiter = new int[kInitialCapacity];
+    private int[] nextWaiter = new int[kInitialCapacity];
+
+    /** First transferPriority queue held, the rest linked through nextHeld */
+    private int[] heldQueues = new int[kInitialCapacity];
+
+    /** KThread owning each handle, null for handles from newThread() */
+    private KThread[] threads = new KThread[kInitialCapacity];
+
+    /** Boxed handle stored in schedulingState, kept for the slot's next KThread */
+    private Integer[] handleBoxes = new Integer[kInitialCapacity];
+
+    private int numThreads = 0;
+    private int numLiveThreads = 0;
+    private int freeThreads = kNone;
+
+    /* Per-queue state, indexed by queue handle. */
+
+    /** First and last waiter of each level, at q * kNumLevels + level */
+    private int[] levelHeads = new int[kInitialCapacity * kNumLevels];
+    private int[] levelTails = new int[kInitialCapacity * kNumLevels];
+
+    /** Bit per occupied level */
+    private int[] levelBitmap = new int[kInitialCapacity];
+
+    /** Resource holder of a transferPriority queue */
+    private int[] holder = new int[kInitialCapacity];
+
+    /** Neighbours among the queues the holder holds; nextHeld also links free handles */
+    private int[] prevHeld = new int[kInitialCapacity];
+    private int[] nextHeld = new int[kInitialCapacity];
+
+    private boolean[] transfer = new boolean[kInitialCapacity];
+
+    private int numQueues = 0;
+    private int freeQueues = kNone;
+
+    /** Handle of no thread or queue, and level of an empty queue. */
+    public static final int kNone = -1;
+
+    /** Number of priority levels of a queue, one bit each in levelBitmap. */
+    protected static final int kNumLevels = PriorityScheduler.priorityMaximum + 1;
+
+    /** Initial number of thread and queue handles. */
+    protected static final int kInitialCapacity = 16;
+}
@@ -0,0 +1,431 @@
+package nachos.threads;
+import nachos.machine.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe access to a PriorityScheduler from real Java threads.
+ *
+ * <p>
+ * The engine takes its mutual exclusion from its Host, which under Nachos
+ * means disabling interrupts. A ConcurrentScheduler runs the engine on a
+ * ConcurrentHost and hands out ConcurrentQueues whose operations take
+ * locks instead. Threads and queues are spread over kNumStripes locks, and
+ * an operation holds the graph lock shared plus the stripes of every
+ * object it may touch:
+ *
+ * <ul>
+ * <li> On a queue that does not transfer priority (run queues, semaphores,
+ *      condition variables), the queue and the thread enqueued or dequeued.
+ * <li> On a transferPriority queue, also the chain of holders a donation
+ *      flows along: each holder, every queue it waits on, and the holders 
+ *      of those queues in turn. Dequeuing adds the outgoing holder's chain 
+ *      and its donors, whose donations are revoked, with their queues.
+ * </ul>
+ *
+ * <p>
+ * The set is found by walking the graph from the queue, locking stripes in 
+ * ascending order. A stripe found below one already held cannot be taken 
+ * without risking deadlock, so the operation drops its stripes and starts 
+ * over taking the larger set up front. After kMaxAttempts tries, or a chain 
+ * longer than kMaxChainDepth, it takes the graph lock exclusively instead. 
+ * So operations on different locks, and on donation chains that share no 
+ * stripe, run in parallel; setPriority(), print() and allocation always 
+ * hold the graph lock exclusively.
+ *
+ * <p>
+ * As in Nachos, a thread may be the subject of only one operation at a
+ * time: a thread waiting on a queue is blocked and does not enqueue itself
+ * elsewhere. The scheduler's consistency checks read threads outside the 
+ * set and are turned off. Tracing and MLFQScheduler, which keep state 
+ * shared across queues, are not supported.
+ */
+public class ConcurrentScheduler
+{
+    /**
+     * Wrap scheduler, which must have been constructed with host.
+     *
+     * @param scheduler A PriorityScheduler, LotteryScheduler or
+     *                  StrideScheduler no other code is using.
+     * @param host      The ConcurrentHost scheduler was constructed with.
+     */
+    public ConcurrentScheduler(PriorityScheduler scheduler, ConcurrentHost host) {
+        Lib.assertTrue(scheduler.host == host);
+        Lib.assertTrue(!(scheduler instanceof MLFQScheduler));
+        Lib.assertTrue(scheduler.getTrace() == null);
+        scheduler.setVerificationTier(PriorityScheduler.kVerifyOff, 1);
+        scheduler.countDepthPerThread();
+        this.scheduler = scheduler;
+        this.graphLock = host.graphLock;
+        stripes = new ReentrantLock[kNumStripes];
+        for(int i = 0; i < kNumStripes; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Allocate a new thread-safe queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should transfer
+     * priority from waiting thread to the owning thread.
+     * @return a new queue.
+     */
+    public ConcurrentQueue newThreadQueue(boolean transferPriority) {
+        graphLock.writeLock().lock();
+        try {
+            return new ConcurrentQueue(
+                (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(transferPriority)
+            );
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    /** Allocate scheduling state for a thread, at the default priority. */
+    public PriorityScheduler.ThreadState newThreadState() {
+        graphLock.writeLock().lock();
+        try {
+            return scheduler.newThreadState();
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    /** Set the priority of ts, propagating any change in donations. */
+    public void setPriority(PriorityScheduler.ThreadState ts, int priority) {
+        graphLock.writeLock().lock();
+        try {
+            ts.setPriority(priority);
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    /** Return the effective priority of ts. */
+    public int getEffectivePriority(PriorityScheduler.ThreadState ts) {
+        ReentrantLock stripe = stripes[threadStripe(ts)];
+        graphLock.readLock().lock();
+        stripe.lock();
+        try {
+            return ts.getEffectivePriority();
+        } finally {
+            stripe.unlock();
+            graphLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * ConcurrentQueue inner class. A ThreadQueue whose operations lock as
+     * described for ConcurrentScheduler and then run on a PriorityQueue.
+     */
+    public class ConcurrentQueue extends ThreadQueue
+    {
+        ConcurrentQueue(PriorityScheduler.PriorityQueue queue) {
+            this.queue = queue;
+            stripe = queueStripe(queue);
+        }
+
+        public void waitForAccess(KThread thread) {
+            waitForAccess(getThreadState(thread));
+        }
+
+        public void waitForAccess(PriorityScheduler.ThreadState ts) {
+            StripeSet held = lock(kOpWait, ts);
+            try {
+                queue.waitForAccess(ts);
+            } finally {
+                held.unlock();
+            }
+        }
+
+        public void acquire(KThread thread) {
+            acquire(getThreadState(thread));
+        }
+
+        public void acquire(PriorityScheduler.ThreadState ts) {
+            StripeSet held = lock(kOpAcquire, ts);
+            try {
+                queue.acquire(ts);
+            } finally {
+                held.unlock();
+            }
+        }
+
+        public KThread nextThread() {
+            PriorityScheduler.ThreadState ts = nextThreadState();
+            return ts == null ? null : ts.thread;
+        }
+
+        public PriorityScheduler.ThreadState nextThreadState() {
+            StripeSet held = lock(kOpNext, null);
+            try {
+                return queue.nextThreadState();
+            } finally {
+                held.unlock();
+            }
+        }
+
+        public void print() {
+            graphLock.writeLock().lock();
+            try {
+                queue.print();
+            } finally {
+                graphLock.writeLock().unlock();
+            }
+        }
+
+        /** Return the PriorityQueue this queue locks around. */
+        public PriorityScheduler.PriorityQueue getQueue() {
+            return queue;
+        }
+
+        /**
+         * Take the locks operation op on this queue needs, see 
+         * ConcurrentScheduler.
+         *
+         * @param op    kOpWait, kOpAcquire or kOpNext.
+         * @param ts    The thread waiting or acquiring, null for kOpNext.
+         * @return this Java thread's StripeSet, to be unlocked when the 
+         *         operation is done.
+         */
+        private StripeSet lock(int op, PriorityScheduler.ThreadState ts) {
+            StripeSet set = heldStripes.get();
+            Lib.assertTrue(set.held == 0 && !set.exclusive);
+            long wanted = 0;
+            for(int attempt = 0; attempt < kMaxAttempts; attempt++) {
+                graphLock.readLock().lock();
+                set.lockAll(wanted);
+                findStripes(set, op, ts);
+                if(set.missing == 0 && !set.overflow) { return set; }
+                wanted = set.held | set.missing;
+                boolean overflow = set.overflow;
+                set.unlock();
+                if(overflow) { break; }
+            }
+            graphLock.writeLock().lock();
+            set.exclusive = true;
+            return set;
+        }
+
+        /** Add to set the stripes operation op may touch. */
+        private void findStripes(StripeSet set, int op, PriorityScheduler.ThreadState ts) {
+            if(!set.reach(stripe)) { return; }
+            if(op == kOpNext) {
+                findDequeueStripes(set);
+                return;
+            }
+            set.reach(threadStripe(ts));
+            if(op == kOpWait && queue.transferPriority && queue.resourceHolder != null) {
+                set.reachChain(queue.resourceHolder, 0);
+            }
+        }
+
+        /**
+         * Add the stripes of a dequeue: the thread picked and, when this 
+         * queue transfers priority, the chains of the picked thread and the 
+         * outgoing holder, and the outgoing holder's donors with the queues 
+         * they wait on.
+         */
+        private void findDequeueStripes(StripeSet set) {
+            PriorityScheduler.ThreadState next = queue.pickNextThread();
+            if(next == null) { return; }
+            if(!queue.transferPriority) {
+                set.reach(threadStripe(next));
+                return;
+            }
+            set.reachChain(next, 0);
+            PriorityScheduler.ThreadState holder = queue.resourceHolder;
+            if(holder == null) { return; }
+            set.reachChain(holder, 0);
+            if(!set.reach(threadStripe(holder))) { return; }
+            for(PriorityScheduler.ThreadState.DonationTracker dt = 
+                    holder.donationManagementDB.first(); 
+                dt != null; 
+                dt = dt.nextReceived) {
+                PriorityScheduler.ThreadState donor = dt.getDonor();
+                if(!set.reach(threadStripe(donor))) { continue; }
+                for(PriorityScheduler.ThreadState.QueueLink link = donor.queuesThisThreadIsOn; 
+                    link != null; 
+                    link = link.nextQueue) {
+                    set.reach(queueStripe(link.queue));
+                }
+            }
+        }
+
+        private final PriorityScheduler.PriorityQueue queue;
+        private final int stripe;
+    } // End of ConcurrentQueue class
+
+    /**
+     * StripeSet inner class. The stripes one Java thread holds for the 
+     * operation it is running, as a mask with bit n for stripe n.
+     *
+     * Objects are reached in the order the graph is walked, and a stripe is 
+     * locked as it is reached only if it is above every stripe held, so 
+     * stripes are always taken in ascending order. Any other stripe not 
+     * already held is noted in missing, and the walk does not go through 
+     * the object.
+     */
+    private class StripeSet
+    {
+        /** Lock the stripes in mask in ascending order and start a walk. */
+        void lockAll(long mask) {
+            for(long m = mask; m != 0; m &= m - 1) {
+                stripes[Long.numberOfTrailingZeros(m)].lock();
+            }
+            held = mask;
+            missing = 0;
+            overflow = false;
+        }
+
+        /** 
+         * Return true if stripe is held, locking it first if it is above 
+         * every held stripe. 
+         */
+        boolean reach(int stripe) {
+            long bit = 1L << stripe;
+            if((held & bit) != 0) { return true; }
+            if(held == 0 || stripe > 63 - Long.numberOfLeadingZeros(held)) {
+                stripes[stripe].lock();
+                held |= bit;
+                return true;
+            }
+            missing |= bit;
+            return false;
+        }
+
+        /**
+         * Reach ts, every queue it waits on and, through each of those that 
+         * transfers priority, the chain of that queue's holder.
+         */
+        void reachChain(PriorityScheduler.ThreadState ts, int depth) {
+            if(depth > kMaxChainDepth) {
+                overflow = true;
+                return;
+            }
+            if(!reach(threadStripe(ts))) { return; }
+            for(PriorityScheduler.ThreadState.QueueLink link = ts.queuesThisThreadIsOn; 
+                link != null; 
+                link = link.nextQueue) {
+                PriorityScheduler.PriorityQueue waitQueue = link.queue;
+                if(reach(queueStripe(waitQueue)) 
+                    && waitQueue.transferPriority 
+                    && waitQueue.resourceHolder != null) {
+                    reachChain(waitQueue.resourceHolder, depth + 1);
+                }
+            }
+        }
+
+        /** Release everything the operation holds. */
+        void unlock() {
+            if(exclusive) {
+                exclusive = false;
+                graphLock.writeLock().unlock();
+                return;
+            }
+            for(long m = held; m != 0; m &= m - 1) {
+                stripes[Long.numberOfTrailingZeros(m)].unlock();
+            }
+            held = 0;
+            graphLock.readLock().unlock();
+        }
+
+        long held;
+        long missing;
+
+        /** A chain was too long to follow */
+        boolean overflow;
+
+        /** The operation holds the graph lock exclusively instead */
+        boolean exclusive;
+    } // End of StripeSet class
+
+    /** Return the scheduling state of a KThread, creating it if needed. */
+    private PriorityScheduler.ThreadState getThreadState(KThread thread) {
+        graphLock.writeLock().lock();
+        try {
+            return scheduler.getThreadState(thread);
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    /** Return the stripe of queue. */
+    private static int queueStripe(PriorityScheduler.PriorityQueue queue) {
+        return queue.traceID & (kNumStripes - 1);
+    }
+
+    /** 
+     * Return the stripe of ts. Thread and queue traceIDs both count up 
+     * from 0, so threads are hashed to keep thread n off queue n's stripe. 
+     */
+    private static int threadStripe(PriorityScheduler.ThreadState ts) {
+        return (ts.traceID * 0x9E3779B9) >>> (Integer.SIZE - kStripeBits);
+    }
+
+    /**
+     * Host for a scheduler used through a ConcurrentScheduler.
+     *
+     * The engine's guard counts as held by a Java thread holding the graph
+     * lock in either mode. disableInterrupts() takes it exclusively, so a
+     * caller may still bracket engine calls the Nachos way, one at a time.
+     * Time is System.nanoTime().
+     */
+    public static class ConcurrentHost implements PriorityScheduler.Host
+    {
+        public boolean interruptsDisabled() {
+            return graphLock.isWriteLockedByCurrentThread()
+                || graphLock.getReadHoldCount() > 0;
+        }
+
+        public boolean disableInterrupts() {
+            boolean held = graphLock.isWriteLockedByCurrentThread();
+            if(!held) { graphLock.writeLock().lock(); }
+            return held;
+        }
+
+        public void restoreInterrupts(boolean status) {
+            if(!status) { graphLock.writeLock().unlock(); }
+        }
+
+        public long getTime() {
+            return System.nanoTime();
+        }
+
+        public ThreadQueue getReadyQueue() {
+            return null;
+        }
+
+        /** Lock over the donation graph, see ConcurrentScheduler */
+        private final ReentrantReadWriteLock graphLock = new ReentrantReadWriteLock();
+    } // End of ConcurrentHost class
+
+    private final PriorityScheduler scheduler;
+    private final ReentrantReadWriteLock graphLock;
+
+    /** Locks guarding threads and queues, see ConcurrentScheduler */
+    private final ReentrantLock[] stripes;
+
+    /** Stripes held by each Java thread */
+    private final ThreadLocal<StripeSet> heldStripes = new ThreadLocal<StripeSet>() {
+        @Override
+        protected StripeSet initialValue() {
+            return new StripeSet();
+        }
+    };
+
+    /** Operations on a ConcurrentQueue, for lock() */
+    private static final int kOpWait = 0;
+    private static final int kOpAcquire = 1;
+    private static final int kOpNext = 2;
+
+    /** Number of lock stripes, one bit of a long each */
+    private static final int kStripeBits = 6;
+    public static final int kNumStripes = 1 << kStripeBits;
+
+    /** Walks of the graph before an operation takes the graph lock exclusively */
+    public static final int kMaxAttempts = 4;
+
+    /** Longest donation chain followed before doing the same */
+    public static final int kMaxChainDepth = 32;
+}
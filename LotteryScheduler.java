@@ -4,7 +4,6 @@ import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Iterator;
-import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -40,23 +39,59 @@ public class LotteryScheduler extends PriorityScheduler
     }
 
     /**
-     * Get a ThreadState object associated with a given KThread.
+     * Construct a new LotteryScheduler running under Nachos. 
+     */
+    public LotteryScheduler() {
+        super();
+    }
+
+    /**
+     * Construct a new LotteryScheduler. 
+     *
+     * @param host  Environment providing the interrupt guard, clock and 
+     *              ready queue identity.
+     */
+    public LotteryScheduler(Host host) {
+        super(host);
+    }
+
+    /**
+     * Construct a new LotteryScheduler whose draws are reproducible. Each 
+     * queue seeds its generator with getQueueSeed(seed, queue.traceID), so 
+     * the same sequence of operations makes the same choices.
+     *
+     * @param host  Environment providing the interrupt guard, clock and 
+     *              ready queue identity.
+     * @param seed  Seed for the queues of this scheduler.
+     */
+    public LotteryScheduler(Host host, long seed) {
+        super(host);
+        this.seed = seed;
+        seeded = true;
+    }
+
+    /** 
+     * Return the seed used by the queue with traceID queueTraceID of a 
+     * scheduler constructed with seed. 
+     */
+    public static long getQueueSeed(long seed, int queueTraceID) {
+        return seed + queueTraceID * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Allocate a new ThreadState object.
      *
-     * This method is overridden to create ThreadState2's if the object does 
-     * not already exist versus the origin method in PriorityScheduler which 
-     * creates ThreadState objects.
+     * This method is overridden to create ThreadState2's versus the origin 
+     * method in PriorityScheduler which creates ThreadState objects.
      *
      * @see ThreadState2 for details on specific differences in behavior versus 
      * ThreadState
-     * @param thread that we're looking up the ThreadState2 for.
-     * @return ThreadState returned for this thread. 
+     * @param thread that the ThreadState2 belongs to, or null if headless.
+     * @return ThreadState2 for this thread. 
      */
     @Override
-    protected ThreadState getThreadState(KThread thread) {
-        if (thread.schedulingState == null) {
-            thread.schedulingState = new ThreadState2(thread);
-        }
-        return (ThreadState) thread.schedulingState;
+    protected ThreadState createThreadState(KThread thread) {
+        return new ThreadState2(thread);
     }
 
     /**
@@ -68,7 +103,7 @@ public class LotteryScheduler extends PriorityScheduler
      * @return a new lottery thread queue.
      */
     @Override
-    public ThreadQueue newThreadQueue(boolean transferPriority) {
+    protected PriorityQueue createQueue(boolean transferPriority) {
         return new LotteryQueue(transferPriority); 
     }
 
@@ -76,6 +111,31 @@ public class LotteryScheduler extends PriorityScheduler
         LotterySchedulerTest.runall();
     }
 
+    /**
+     * Add two ticket counts, saturating at kMaxTickets.
+     *
+     * Both arguments are at most kMaxTickets, so the sum cannot overflow 
+     * before it is clamped.
+     */
+    protected static long addTickets(long a, long b) {
+        long sum = a + b;
+        return sum > kMaxTickets ? kMaxTickets : sum;
+    }
+
+    /** 
+     * Most tickets a single thread can hold. Leaves 23 bits of headroom so 
+     * the total of a LotteryQueue with millions of saturated waiters still 
+     * fits in a long.
+     */
+    protected static final long kMaxTickets = 1L << 40;
+
+    /** LotteryLink is not holding a slot in a LotteryQueue ticket tree. */
+    protected static final int kNoTicketSlot = 0;
+
+    /** True if queues are seeded from seed */
+    private boolean seeded = false;
+    private long seed;
+
 
     /** 
      * LotteryQueue inner class. Extends PriorityQueue 
@@ -87,6 +147,29 @@ public class LotteryScheduler extends PriorityScheduler
         LotteryQueue(boolean transferPriority) {
             super(transferPriority, kQueueIndiciesNeeded);
             checkMode = kCheckModeLottery; 
+            if(seeded) { 
+                setSeed(getQueueSeed(seed, traceID)); 
+            }
+        }
+
+        /** 
+         * Reseed the generator the lottery is drawn from and discard any 
+         * cached draw. 
+         */
+        public void setSeed(long queueSeed) {
+            randMaker.setSeed(queueSeed);
+            invalidateCachedThread();
+        }
+
+        /** 
+         * Drop the cached draw when recycled. The generator is not reseeded, 
+         * so a seeded queue's draws continue across its lives and a trace 
+         * of it still replays. 
+         */
+        @Override
+        protected void resetForReuse() {
+            super.resetForReuse();
+            invalidateCachedThread();
         }
 
         /** 
@@ -111,35 +194,49 @@ public class LotteryScheduler extends PriorityScheduler
          * arrayOfQueues[]. 
          */
         @Override 
-        protected LinkedList<ThreadState> getQueue(int index) { 
+        protected LevelList getQueue(int index) { 
             return getQueue(); 
         }
 
 
+        /**
+         * All threads share backing queue 0 regardless of ticket count, so 
+         * every priority maps onto the same level of the level bitmap.
+         */
+        @Override
+        protected int getLevelIndex(int priority) {
+            return 0;
+        }
+
+
         /** 
          * To be used in the LotteryScheduler only. 
          * Implied array index 0 
          */
-        private final LinkedList<ThreadState> getQueue() { 
+        private final LevelList getQueue() { 
             return super.getQueue(0); 
         }
 
 
         /** 
-         * Return the next thread from this queue. Override of 
-         * PriorityQueue.nextThread() 
+         * Remove the next thread from this queue. Override of 
+         * PriorityQueue.nextThreadState() 
          */
         @Override
-        public KThread nextThread()  {
+        public ThreadState nextThreadState()  {
             if(nextThreadOut != null) {
-                Lib.assertTrue(super.nextThread() == nextThreadOut.thread);
                 ThreadState outThread = nextThreadOut;
+                ThreadState dequeuedThread = super.nextThreadState();
+                Lib.assertTrue(dequeuedThread == outThread);
                 invalidateCachedThread();
-                return outThread.thread; 
+                return outThread; 
             } else if(pickNextThread() != null)  {
-                return nextThread();
+                return nextThreadState();
             } else {
-                if(queueID == KThread.getReadyQueueID() && emptyReadyWarning) {
+                if(trace != null) {
+                    traceEvent(SchedulerTrace.kEventNextThread, null, this, null, SchedulerTrace.kNone);
+                }
+                if(this == host.getReadyQueue() && emptyReadyWarning) {
                     Lib.debug(dbgPSched, "WARNING: Ready queue is empty."); 
                     print();
                     emptyReadyWarning = false;
@@ -151,52 +248,266 @@ public class LotteryScheduler extends PriorityScheduler
         /** 
          * Determine the next thread to remove from this queue.
          *
-         * Winning ticket range = [0.0, 1.0)
          * Because the choice of next thread is stochastic, if this method is 
          * called, we must store the value returned by it for later use with 
-         * nextThread().
+         * nextThread(). The choice is made by chooseNextThread() and cached 
+         * until the queue changes.
          *
          * @return the next ThreadState that will be chosen from the queue. 
          */ 
         @Override
-        public ThreadState pickNextThread() 
-            if(nextThreadOut != null) { return nextThreadOut; }
-            nextThreadOut = null;
-            double sumOfThreadPriorities = 0.0;
-            double indexOffset = 0.0;
-            double winningTicket = randMaker.nextDouble(); 
-            int i = 0;
+        public ThreadState pickNextThread() {
+            if(nextThreadOut == null) { 
+                nextThreadOut = chooseNextThread(); 
+            }
+            return nextThreadOut;
+        }
+
+        /**
+         * Hold the lottery.
+         *
+         * The winning ticket is drawn as an exact integer from [0, total 
+         * tickets on this queue) and located with a descent of the ticket 
+         * tree, so a draw is O(log n) in the number of waiters, allocates 
+         * nothing and involves no floating point. 
+         *
+         * @return the winner, or null if the queue is empty.
+         */
+        protected ThreadState chooseNextThread() {
             int numThreadsOnThisQueue = getQueue().size();
-            double[] selectionArray = new double[numThreadsOnThisQueue];
 
-            for(ThreadState thread : getQueue()) {
-                sumOfThreadPriorities += thread.getEffectivePriority();
-            }
-        
             // These two statements (should be) logically equivalent so verify 
             // that this is true before returning 
-            if(sumOfThreadPriorities == 0 || numThreadsOnThisQueue == 0) {
-                Lib.assertTrue(sumOfThreadPriorities == 0 && numThreadsOnThisQueue == 0);
+            if(ticketTotal == 0 || numThreadsOnThisQueue == 0) {
+                Lib.assertTrue(ticketTotal == 0 && numThreadsOnThisQueue == 0);
                 return null;
             }
+            long winningTicket = drawTicket(ticketTotal);
+            ThreadState winner = slotLinks[findTicketSlot(winningTicket)].getOwner();
+            Lib.assertTrue(winner != null);
+            return winner;   
+        }
 
-            for(ThreadState thread : getQueue()) {
-                selectionArray[i] = 
-                    ((double)thread.getEffectivePriority() 
-                    / sumOfThreadPriorities) 
-                    + indexOffset;
-                indexOffset = selectionArray[i];
-
-                // Lower bound inclusive, upper bound exclusive*
-                if(winningTicket < selectionArray[i]) {
-                    nextThreadOut = getQueue().get(i);
-                    Lib.assertTrue(nextThreadOut != null);
-                    return nextThreadOut;   
+
+
+        /**
+         * Add a thread to this queue and give it a slot in the ticket tree 
+         * holding its current effective priority. 
+         */
+        @Override
+        protected boolean addToLevel(int priority, ThreadState.QueueLink queueLink) {
+            if(!super.addToLevel(priority, queueLink)) { return false; }
+            ThreadState2.LotteryLink link = (ThreadState2.LotteryLink)queueLink;
+            Lib.assertTrue(link.ticketSlot == kNoTicketSlot);
+            link.ticketSlot = allocateTicketSlot(link);
+            setTickets(link.ticketSlot, getTickets(link));
+            invalidateCachedThread();
+            return true;
+        }
+
+
+
+        /**
+         * Remove a thread from this queue, withdrawing its tickets from the 
+         * ticket tree and releasing its slot. 
+         */
+        @Override
+        protected boolean removeFromLevel(ThreadState.QueueLink queueLink) {
+            if(!super.removeFromLevel(queueLink)) { return false; }
+            ThreadState2.LotteryLink link = (ThreadState2.LotteryLink)queueLink;
+            setTickets(link.ticketSlot, 0);
+            slotLinks[link.ticketSlot] = null;
+            freeSlots[numFreeSlots++] = link.ticketSlot;
+            link.ticketSlot = kNoTicketSlot;
+            if(nextThreadOut == link.getOwner()) {
+                invalidateCachedThread();
+            }
+            return true;
+        }
+
+
+
+        /**
+         * Bring a waiting thread's entry in the ticket tree up to date with 
+         * its effective priority. Must be called whenever the effective 
+         * priority of a thread on this queue changes. 
+         *
+         * @param link  Link of the thread whose tickets changed.
+         */
+        protected void updateTickets(ThreadState.QueueLink queueLink) {
+            ThreadState2.LotteryLink link = (ThreadState2.LotteryLink)queueLink;
+            if(link == null || link.ticketSlot == kNoTicketSlot) { return; }
+            if(setTickets(link.ticketSlot, getTickets(link))) {
+                invalidateCachedThread();
+            }
+        }
+
+
+
+        /**
+         * Hold the lottery among the waiters allowed to run on cpu, each 
+         * winning in proportion to its tickets.
+         *
+         * The draw nextThread() would use is kept if its winner is eligible, 
+         * which is what an unrestricted steal sees. Otherwise a second draw 
+         * is held over the eligible waiters alone, walking the ticket slots. 
+         * Either way a waiter wins with its share of the eligible tickets.
+         *
+         * @param cpu   CPU number, see ThreadState.setAffinity().
+         * @return the winner, or null if no waiter may run on cpu.
+         */
+        @Override
+        public ThreadState findEligible(int cpu) {
+            ThreadState winner = pickNextThread();
+            if(winner == null || winner.canRunOn(cpu)) { return winner; }
+
+            long eligibleTotal = 0;
+            for(int slot = 1; slot < slotLinks.length; slot++) {
+                if(slotLinks[slot] != null && slotLinks[slot].getOwner().canRunOn(cpu)) {
+                    eligibleTotal += slotTickets[slot];
                 }
-                i++;
             }
-            Lib.assertNotReached("Did not find a match in pickNextThread."); 
-            return null; 
+            if(eligibleTotal == 0) { return null; }
+
+            long winningTicket = drawTicket(eligibleTotal);
+            for(int slot = 1; slot < slotLinks.length; slot++) {
+                if(slotLinks[slot] == null || !slotLinks[slot].getOwner().canRunOn(cpu)) {
+                    continue;
+                }
+                if(winningTicket < slotTickets[slot]) { 
+                    return slotLinks[slot].getOwner(); 
+                }
+                winningTicket -= slotTickets[slot];
+            }
+            Lib.assertNotReached("eligible tickets do not add up");
+            return null;
+        }
+
+
+
+        /** Return the exact ticket count of the thread owning link. */
+        private long getTickets(ThreadState.QueueLink link) {
+            return ((ThreadState2)link.getOwner()).getTicketCount();
+        }
+
+
+
+        /**
+         * Draw a uniformly distributed ticket number in [0, bound).
+         *
+         * Uses rejection of the few top values of a 63-bit random word that 
+         * would bias the remainder, so the draw is exact for any bound.
+         *
+         * @param bound total number of tickets, greater than 0.
+         * @return the winning ticket.
+         */
+        private long drawTicket(long bound) {
+            long mask = bound - 1;
+            long candidate = randMaker.nextLong() >>> 1;
+            if((bound & mask) == 0) { 
+                return candidate & mask; 
+            }
+            long ticket = candidate % bound;
+            while(candidate - ticket + mask < 0) {
+                candidate = randMaker.nextLong() >>> 1;
+                ticket = candidate % bound;
+            }
+            return ticket;
+        }
+
+
+
+        /** 
+         * Set the ticket count held in a slot of the ticket tree, updating 
+         * every partial sum that covers it. 
+         *
+         * @return true if the slot's ticket count changed.
+         */
+        private boolean setTickets(int slot, long tickets) {
+            long delta = tickets - slotTickets[slot];
+            if(delta == 0) { return false; }
+            slotTickets[slot] = tickets;
+            ticketTotal += delta;
+            for(int i = slot; i < ticketTree.length; i += i & -i) {
+                ticketTree[i] += delta;
+            }
+            return true;
+        }
+
+
+
+        /**
+         * Find the slot holding a given ticket, i.e. the smallest slot whose 
+         * prefix sum of tickets exceeds winningTicket. 
+         *
+         * @param winningTicket ticket number in [0, ticketTotal).
+         * @return index of the slot holding winningTicket.
+         */
+        private int findTicketSlot(long winningTicket) {
+            int position = 0;
+            for(int step = Integer.highestOneBit(ticketTree.length - 1); 
+                step > 0; 
+                step >>= 1) {
+                int next = position + step;
+                if(next < ticketTree.length && ticketTree[next] <= winningTicket) {
+                    position = next;
+                    winningTicket -= ticketTree[next];
+                }
+            }
+            return position + 1;
+        }
+
+
+
+        /** 
+         * Hand out a free slot in the ticket tree, growing the tree if every 
+         * slot is in use. 
+         */
+        private int allocateTicketSlot(ThreadState.QueueLink link) {
+            if(numFreeSlots == 0) { 
+                growTicketTree(); 
+            }
+            int slot = freeSlots[--numFreeSlots];
+            slotLinks[slot] = link;
+            return slot;
+        }
+
+
+
+        /**
+         * Double the capacity of the ticket tree (allocating it on first 
+         * use) and rebuild the partial sums from slotTickets in linear time.
+         */
+        private void growTicketTree() {
+            int oldCapacity = ticketTree == null ? 0 : ticketTree.length - 1;
+            int newCapacity = 
+                oldCapacity == 0 ? kInitialTicketSlots : oldCapacity * 2;
+            long[] newTickets = new long[newCapacity + 1];
+            ThreadState.QueueLink[] newLinks = 
+                new ThreadState.QueueLink[newCapacity + 1];
+
+            if(oldCapacity > 0) {
+                System.arraycopy(slotTickets, 0, newTickets, 0, oldCapacity + 1);
+                System.arraycopy(slotLinks, 0, newLinks, 0, oldCapacity + 1);
+            }
+            long[] newTree = newTickets.clone();
+            for(int i = 1; i <= newCapacity; i++) {
+                int parent = i + (i & -i);
+                if(parent <= newCapacity) {
+                    newTree[parent] += newTree[i];
+                }
+            }
+            ticketTree = newTree;
+            slotTickets = newTickets;
+            slotLinks = newLinks;
+
+            // Every slot above the old capacity is free. Push them so the 
+            // lowest index is handed out first.
+            freeSlots = new int[newCapacity];
+            numFreeSlots = 0;
+            for(int i = newCapacity; i > oldCapacity; i--) {
+                freeSlots[numFreeSlots++] = i;
+            }
         }
 
         /* LotteryQueue class properties */
@@ -204,6 +515,27 @@ public class LotteryScheduler extends PriorityScheduler
         private ThreadState nextThreadOut = null;
         private static final int kQueueIndiciesNeeded = 0; 
 
+        /** 
+         * Fenwick tree of ticket counts indexed by slot (1-based). Entry i 
+         * holds the sum of slotTickets over (i - (i & -i), i]. 
+         */
+        private long[] ticketTree;
+
+        /** Tickets currently held by the thread in each slot */
+        private long[] slotTickets;
+
+        /** Link of the thread occupying each slot, or null if free */
+        private ThreadState.QueueLink[] slotLinks;
+
+        /** Stack of unoccupied slots */
+        private int[] freeSlots;
+        private int numFreeSlots = 0;
+
+        /** Sum of all tickets on this queue */
+        private long ticketTotal = 0;
+
+        private static final int kInitialTicketSlots = 4;
+
     } // End of LotteryQueue class 
 
     /** 
@@ -216,6 +548,7 @@ public class LotteryScheduler extends PriorityScheduler
     {
         ThreadState2(KThread inThread) {
             super(inThread);
+            publishedTickets = getTicketCount();
         }
 
 
@@ -224,32 +557,76 @@ public class LotteryScheduler extends PriorityScheduler
          *
          * In PriorityQueue this is required since we have different queues for 
          * different priority levels. Since LotteryQueue only uses one backing 
-         * queue, this method is not needed. To maintain compatibility with 
-         * existing methods in PriorityQueue, this method is overridden here to 
-         * do nothing. 
+         * queue, the thread stays where it is and only its entry in the 
+         * queue's ticket tree is updated to the new effective priority. 
          */
         @Override
         protected void moveThreadOnQueue(PriorityQueue queue, int from, int to) {
+            ((LotteryQueue)queue).updateTickets(getQueueLink(queue));
         } 
 
 
+
+        /** Waiters on a LotteryQueue need a slot in its ticket tree. */
+        @Override
+        protected QueueLink createQueueLink(PriorityQueue waitQueue) {
+            return new LotteryLink(waitQueue);
+        }
+
+
         /** 
          * Gets this thread's effective priority. 
          * 
          * Override of ThreadState.getEffectivePriority(). Here, effective 
          * priority is the sum of this thread's intrinsic priority as well as 
-         * the sum of all valid donations to this thread. 
+         * the sum of all valid donations to this thread, clamped to the int 
+         * range. Use getTicketCount() where the exact value matters.
          *
          * @return this thread's effective priority. 
          */
         @Override
         public int getEffectivePriority() {
-            int outSum = getPriority();
-            for(DonationTracker dt : donationManagementDB) {{
-                outSum += dt.donation;
-                Lib.assertTrue(dt.donor.threadsDonatedTo.contains(this)); 
+            return (int)Math.min(getTicketCount(), Integer.MAX_VALUE);
+        }
+
+
+
+        /**
+         * Return the exact number of tickets this thread holds: its own 
+         * priority plus all valid donations to it, saturating at kMaxTickets.
+         *
+         * The donation total is maintained incrementally by 
+         * donationChanged(), so this is a field read.
+         *
+         * @return this thread's ticket count.
+         */
+        public long getTicketCount() {
+            return addTickets(getPriority(), Math.min(donatedTickets, kMaxTickets));
+        }
+
+
+
+        /**
+         * Keep donatedTickets equal to the sum over donationManagementDB by 
+         * removing revoked donations and adding new ones. 
+         */
+        @Override
+        protected void donationChanged(DonationTracker oldDonation, DonationTracker newDonation) {
+            if(oldDonation != null) { 
+                donatedTickets -= oldDonation.donation; 
             }
-            return outSum;
+            if(newDonation != null) { 
+                donatedTickets += newDonation.donation; 
+            }
+            Lib.assertTrue(donatedTickets >= 0);
+        }
+
+
+
+        /** Donations in a lottery are the donor's full ticket count. */
+        @Override
+        protected long getDonationOffer() {
+            return getTicketCount();
         }
 
 
@@ -278,26 +655,119 @@ public class LotteryScheduler extends PriorityScheduler
 
 
 
+        /**
+         * A change of this thread's own tickets always changes what it 
+         * donates, even where its effective priority saturates, so it is 
+         * always propagated.
+         */
+        @Override
+        protected boolean priorityChangeRequiresUpdate(int oldEffectivePriority) {
+            return true;
+        }
+
+
+
         /**
          * Recalculate a thread's effective priority to determine if it has 
          * changed and if so, propagate that change to all other threads it has 
          * donated to. 
          *
-         * In a lottery queue, calculation of effective priority is done in 
-         * real time via getEffectivePriority(). Moreover, we already know that 
-         * any change in donation changes this thread's effective priority. 
-         * Consequently, this method simply forwards a call to 
-         * propagatePriorityDonation() to notify all other threads this thread 
-         * has donated to of the change in its EP to maintain transitivity of 
-         * donation and invalidates the cache of any queue this thread is 
-         * sitting on, forcing recalculation in pickNextThread or nextThread. 
+         * In a lottery queue, the ticket count behind the effective priority 
+         * is already kept current by donationChanged(), so all that is left 
+         * is to publish the change via propagatePriorityDonation().
          */
         @Override
         protected void calculatePriorityDonation() {
             propagatePriorityDonation();
-            for( PriorityQueue queue : queuesThisThreadIsOn) {
-                ((LotteryQueue)queue).invalidateCachedThread();
+        }
+
+
+
+        /**
+         * Publish a change in this thread's ticket count.
+         *
+         * Lottery donations add, so if this thread's count moved by delta 
+         * since it was last published, the donation it made to each thread 
+         * it is waiting on moves by exactly delta as well. Rather than 
+         * resending full offers, apply delta to this thread's entry in the 
+         * ticket tree of every queue it sits on and to each donation it has 
+         * outstanding, then let each receiver publish its own (possibly 
+         * saturated) change in turn. This walks the wait-for chain once and 
+         * touches only the queues along it. 
+         */
+        @Override
+        protected void propagatePriorityDonation() {
+            Lib.assertTrue(host.interruptsDisabled());
+            long delta = getTicketCount() - publishedTickets;
+            if(delta == 0) { return; }
+            publishedTickets += delta;
+
+            for(QueueLink link = queuesThisThreadIsOn; 
+                link != null; 
+                link = link.nextQueue) {
+                PriorityQueue queue = link.queue;
+                ((LotteryQueue)queue).updateTickets(link);
+
+                ThreadState holder = queue.resourceHolder;
+                if(!queue.transferPriority || holder == null || holder == this) {
+                    continue;
+                }
+                DonationTracker dt = getDonationTo(holder);
+
+                // A donor has one donation per holder; only apply the delta 
+                // through the queue it was made on.
+                if(dt != null && dt.queueDonorCameFrom == queue) {
+                    ((ThreadState2)holder).receiveTicketDelta(dt, delta);
+                }
             }
         }
+
+
+
+        /**
+         * Apply a change of delta tickets to a donation this thread has 
+         * received and publish the resulting change in this thread's count.
+         *
+         * @param dt    Donation from a thread whose ticket count changed.
+         * @param delta Change in that thread's ticket count.
+         */
+        protected void receiveTicketDelta(DonationTracker dt, long delta) {
+            dt.donation += delta;
+            donatedTickets += delta;
+            Lib.assertTrue(donatedTickets >= 0);
+            beginDonation(dt.queueDonorCameFrom);
+            propagatePriorityDonation();
+            endDonation();
+        }
+
+
+        /** 
+         * Exact sum of donation over donationManagementDB. Each donation is 
+         * at most kMaxTickets so this cannot overflow in practice. 
+         */
+        private long donatedTickets = 0;
+
+        /** 
+         * Ticket count last published to the queues this thread is on and 
+         * to the threads it has donated to. 
+         */
+        private long publishedTickets;
+
+
+        /**
+         * LotteryLink inner class. Extends QueueLink 
+         *
+         * Adds the slot this thread holds in the ticket tree of the 
+         * LotteryQueue it is waiting on.
+         */
+        protected class LotteryLink extends QueueLink
+        {
+            LotteryLink(PriorityQueue inQueue) {
+                super(inQueue);
+            }
+
+            /** Slot in the ticket tree of a LotteryQueue */
+            int ticketSlot = kNoTicketSlot;
+        } // End of LotteryLink class
     } // End of ThreadState2 class
 } // End of LotteryScheduler class
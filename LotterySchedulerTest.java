@@ -15,6 +15,7 @@
 package nachos.threads;
 import nachos.threads.*;
 import nachos.machine.*;
+import java.io.IOException;
  
 public class LotterySchedulerTest 
 {
@@ -935,6 +936,357 @@ public class LotterySchedulerTest
         return EXIT_SUCCESS;
     }
 
+    /**
+     * Record a random workload on a seeded headless LotteryScheduler and 
+     * replay it into a fresh one under the same seed. Every lottery must be 
+     * won by the thread that won it when recorded.
+     */
+    public static boolean test9()
+    {
+        Lib.debug(dbgTesting, "[ TEST9 ]: Entered TEST9");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        boolean matched = false;
+        long decisions = 0;
+
+        try {
+            String fileName = PrioritySchedulerTest.recordWorkload(
+                new LotteryScheduler(host, replaySeed), host, replayOps
+            );
+            SchedulerTrace trace = SchedulerTrace.open(fileName);
+            PriorityScheduler.HeadlessHost replayHost = new PriorityScheduler.HeadlessHost();
+            SchedulerReplay replay = new SchedulerReplay(
+                trace, new LotteryScheduler(replayHost, replaySeed), replayHost, replaySeed
+            );
+            matched = replay.run();
+            decisions = replay.getNumDecisions();
+            trace.close();
+        } catch(IOException e) {
+            System.out.println("[ TEST9 ]: ERROR: " + e);
+        }
+
+        if(matched && decisions > 0)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST9 ]: ERROR: Failed test9. matched " + matched + " decisions " + decisions);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * A CPU stealing from a lottery run queue holds a lottery among the 
+     * waiters allowed to run on it. A thread pinned to the victim CPU with 
+     * most of the tickets is never taken, and the two others are taken in 
+     * proportion to their tickets rather than the longest waiting first.
+     */
+    public static boolean test10()
+    {
+        Lib.debug(dbgTesting, "[ TEST10 ]: Entered TEST10");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        LotteryScheduler scheduler = new LotteryScheduler(host, replaySeed);
+        boolean st = host.disableInterrupts();
+        RunQueueSet cpus = new RunQueueSet(scheduler, 2);
+        PriorityScheduler.ThreadState pinned = scheduler.newThreadState();
+        PriorityScheduler.ThreadState first = scheduler.newThreadState();
+        PriorityScheduler.ThreadState second = scheduler.newThreadState();
+        pinned.setPriority(100);
+        first.setPriority(1);
+        second.setPriority(3);
+        pinned.setAffinity(1L);
+
+        int secondStolen = 0;
+        boolean pinnedKept = true;
+        for(int i = 0; i < stealRounds; i++) {
+            first.setAffinity(1L);
+            second.setAffinity(1L);
+            cpus.ready(pinned);
+            cpus.ready(first);
+            cpus.ready(second);
+            first.setAffinity(PriorityScheduler.kAllCPUs);
+            second.setAffinity(PriorityScheduler.kAllCPUs);
+
+            PriorityScheduler.ThreadState stolen = cpus.nextThread(1);
+            pinnedKept = pinnedKept && stolen != pinned && stolen != null;
+            if(stolen == second) { secondStolen++; }
+            while(cpus.nextThread(0) != null) { }
+        }
+        host.restoreInterrupts(st);
+
+        // second holds 3 of the 4 eligible tickets.
+        long expected = stealRounds * 3 / 4;
+        if(pinnedKept 
+            && cpus.getSteals() == stealRounds 
+            && Math.abs(secondStolen - expected) < stealRounds / 20)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST10 ]: ERROR: Failed test10. pinnedKept " + pinnedKept + " steals " + cpus.getSteals() + " secondStolen " + secondStolen + " of " + stealRounds);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Threads holding 1, 2, 3 and 4 tickets are drawn from a plain queue 
+     * and put back. Each must win close to its share of the tickets, and 
+     * keep doing so after one of them is given more tickets while it waits.
+     */
+    public static boolean test11()
+    {
+        Lib.debug(dbgTesting, "[ TEST11 ]: Entered TEST11");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        LotteryScheduler scheduler = new LotteryScheduler(host, replaySeed);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue queue =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.ThreadState[] threads = new PriorityScheduler.ThreadState[4];
+        long[] tickets = { 1, 2, 3, 4 };
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = scheduler.newThreadState();
+            threads[i].setPriority((int)tickets[i]);
+            queue.waitForAccess(threads[i]);
+        }
+
+        boolean fair = drawnInShare(queue, threads, tickets);
+        threads[0].setPriority(6);
+        tickets[0] = 6;
+        boolean fairAfterChange = drawnInShare(queue, threads, tickets);
+        host.restoreInterrupts(st);
+
+        if(fair && fairAfterChange)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST11 ]: ERROR: Failed test11. fair " + fair + " fairAfterChange " + fairAfterChange);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Ticket counts past the int range. Three waiters with Integer.MAX_VALUE 
+     * tickets each win about a third of the draws against a one ticket 
+     * waiter that never wins. A holder they donate to counts every ticket 
+     * exactly but reports an effective priority of Integer.MAX_VALUE, and a 
+     * holder with enough donors saturates at kMaxTickets.
+     */
+    public static boolean test12()
+    {
+        Lib.debug(dbgTesting, "[ TEST12 ]: Entered TEST12");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        LotteryScheduler scheduler = new LotteryScheduler(host, replaySeed);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue queue =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue lock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.PriorityQueue crowdedLock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState[] rich = new PriorityScheduler.ThreadState[3];
+        PriorityScheduler.ThreadState poor = scheduler.newThreadState();
+        for(int i = 0; i < rich.length; i++) {
+            rich[i] = scheduler.newThreadState();
+            rich[i].setPriority(Integer.MAX_VALUE);
+            queue.waitForAccess(rich[i]);
+        }
+        queue.waitForAccess(poor);
+
+        long[] wins = new long[rich.length];
+        boolean poorWon = false;
+        for(int n = 0; n < bigDrawRounds; n++) {
+            PriorityScheduler.ThreadState next = queue.nextThreadState();
+            for(int i = 0; i < rich.length; i++) {
+                if(rich[i] == next) { wins[i]++; }
+            }
+            poorWon = poorWon || next == poor;
+            queue.waitForAccess(next);
+        }
+        boolean exactDraws = !poorWon;
+        for(int i = 0; i < rich.length; i++) {
+            exactDraws = 
+                exactDraws 
+                && Math.abs(wins[i] - bigDrawRounds / 3) < bigDrawRounds / 20;
+        }
+
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState[] donors = new PriorityScheduler.ThreadState[3];
+        lock.acquire(holder);
+        for(int i = 0; i < donors.length; i++) {
+            donors[i] = scheduler.newThreadState();
+            donors[i].setPriority(Integer.MAX_VALUE);
+            lock.waitForAccess(donors[i]);
+        }
+        boolean exactCount = 
+            getTickets(holder) == 1 + 3L * Integer.MAX_VALUE
+            && holder.getEffectivePriority() == Integer.MAX_VALUE;
+        PriorityScheduler.ThreadState newHolder = lock.nextThreadState();
+        boolean exactAfterRevoke = 
+            getTickets(holder) == 1
+            && getTickets(newHolder) == 3L * Integer.MAX_VALUE;
+
+        PriorityScheduler.ThreadState crowded = scheduler.newThreadState();
+        crowdedLock.acquire(crowded);
+        int numCrowd = (int)(LotteryScheduler.kMaxTickets / Integer.MAX_VALUE) + 2;
+        for(int i = 0; i < numCrowd; i++) {
+            PriorityScheduler.ThreadState ts = scheduler.newThreadState();
+            ts.setPriority(Integer.MAX_VALUE);
+            crowdedLock.waitForAccess(ts);
+        }
+        boolean saturated = 
+            getTickets(crowded) == LotteryScheduler.kMaxTickets
+            && crowded.getEffectivePriority() == Integer.MAX_VALUE;
+        host.restoreInterrupts(st);
+
+        if(exactDraws && exactCount && exactAfterRevoke && saturated)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST12 ]: ERROR: Failed test12. exactDraws " + exactDraws + " exactCount " + exactCount + " exactAfterRevoke " + exactAfterRevoke + " saturated " + saturated);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * A holder's ticket count follows each donation as it is made, revised 
+     * and revoked, on two locks at once and through a donor that is itself 
+     * receiving a donation.
+     */
+    public static boolean test13()
+    {
+        Lib.debug(dbgTesting, "[ TEST13 ]: Entered TEST13");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        LotteryScheduler scheduler = new LotteryScheduler(host, replaySeed);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue lock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.PriorityQueue otherLock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.PriorityQueue donorLock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState first = scheduler.newThreadState();
+        PriorityScheduler.ThreadState second = scheduler.newThreadState();
+        PriorityScheduler.ThreadState third = scheduler.newThreadState();
+        PriorityScheduler.ThreadState nested = scheduler.newThreadState();
+        first.setPriority(2);
+        second.setPriority(5);
+        third.setPriority(4);
+        nested.setPriority(7);
+
+        lock.acquire(holder);
+        otherLock.acquire(holder);
+        donorLock.acquire(first);
+        lock.waitForAccess(first);
+        lock.waitForAccess(second);
+        boolean added = getTickets(holder) == 8;
+        first.setPriority(10);
+        boolean revised = getTickets(holder) == 16;
+        otherLock.waitForAccess(third);
+        donorLock.waitForAccess(nested);
+        boolean nestedAdded = 
+            getTickets(first) == 17 
+            && getTickets(holder) == 27;
+        boolean revoked = 
+            otherLock.nextThreadState() == third
+            && getTickets(holder) == 23
+            && donorLock.nextThreadState() == nested
+            && getTickets(first) == 10
+            && getTickets(holder) == 16;
+        host.restoreInterrupts(st);
+
+        if(added && revised && nestedAdded && revoked)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST13 ]: ERROR: Failed test13. added " + added + " revised " + revised + " nestedAdded " + nestedAdded + " revoked " + revoked);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * A change of tickets at the end of a chain of four locks reaches every 
+     * holder along it by the same amount, alongside a second lock held 
+     * part way up. Handing a lock in the middle of the chain on takes the 
+     * tickets of everything behind it off the holders in front, and later 
+     * changes behind it stop there.
+     */
+    public static boolean test14()
+    {
+        Lib.debug(dbgTesting, "[ TEST14 ]: Entered TEST14");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        LotteryScheduler scheduler = new LotteryScheduler(host, replaySeed);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue[] locks = new PriorityScheduler.PriorityQueue[4];
+        PriorityScheduler.ThreadState[] chain = new PriorityScheduler.ThreadState[5];
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        }
+        for(int i = 0; i < chain.length; i++) {
+            chain[i] = scheduler.newThreadState();
+        }
+        PriorityScheduler.PriorityQueue sideLock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState side = scheduler.newThreadState();
+        side.setPriority(3);
+
+        // chain[i] holds locks[i] and waits on locks[i - 1]
+        for(int i = 0; i < locks.length; i++) {
+            locks[i].acquire(chain[i]);
+        }
+        for(int i = 1; i < chain.length; i++) {
+            locks[i - 1].waitForAccess(chain[i]);
+        }
+        sideLock.acquire(chain[1]);
+        sideLock.waitForAccess(side);
+        boolean built = ticketsAre(chain, new long[] { 8, 7, 3, 2, 1 });
+
+        chain[4].setPriority(11);
+        boolean raised = ticketsAre(chain, new long[] { 18, 17, 13, 12, 11 });
+        side.setPriority(1);
+        boolean sideLowered = ticketsAre(chain, new long[] { 16, 15, 13, 12, 11 });
+
+        boolean handedOn = locks[1].nextThreadState() == chain[2];
+        boolean revoked = ticketsAre(chain, new long[] { 3, 2, 13, 12, 11 });
+        chain[4].setPriority(1);
+        boolean stopped = ticketsAre(chain, new long[] { 3, 2, 3, 2, 1 });
+        host.restoreInterrupts(st);
+
+        if(built && raised && sideLowered && handedOn && revoked && stopped)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST14 ]: ERROR: Failed test14. built " + built + " raised " + raised + " sideLowered " + sideLowered + " handedOn " + handedOn + " revoked " + revoked + " stopped " + stopped);
+        return EXIT_FAILURE;
+    }
+
+    // Return true if each thread holds exactly the matching ticket count
+    private static boolean ticketsAre(
+        PriorityScheduler.ThreadState[] threads,
+        long[] tickets) {
+        for(int i = 0; i < threads.length; i++) {
+            if(getTickets(threads[i]) != tickets[i]) { return false; }
+        }
+        return true;
+    }
+
+    // Return the exact ticket count of a LotteryScheduler thread
+    private static long getTickets(PriorityScheduler.ThreadState ts) {
+        return ((LotteryScheduler.ThreadState2)ts).getTicketCount();
+    }
+
+    // Draw from queue drawRounds times, putting each winner back, and return
+    // true if every thread won within 1% of drawRounds of its ticket share
+    private static boolean drawnInShare(
+        PriorityScheduler.PriorityQueue queue,
+        PriorityScheduler.ThreadState[] threads,
+        long[] tickets) {
+        long[] wins = new long[threads.length];
+        long total = 0;
+        for(int i = 0; i < tickets.length; i++) { 
+            total += tickets[i]; 
+        }
+        for(int n = 0; n < drawRounds; n++) {
+            PriorityScheduler.ThreadState next = queue.nextThreadState();
+            for(int i = 0; i < threads.length; i++) {
+                if(threads[i] == next) { wins[i]++; }
+            }
+            queue.waitForAccess(next);
+        }
+        boolean fair = true;
+        for(int i = 0; i < threads.length; i++) {
+            long share = drawRounds * tickets[i] / total;
+            fair = fair && Math.abs(wins[i] - share) < drawRounds / 100;
+        }
+        return fair;
+    }
+
     // Run all tests defined here 
     public static void runall() 
     {
@@ -953,10 +1305,27 @@ public class LotterySchedulerTest
          System.out.println("Does test 6 look reasonable to you??");
          Lib.assertTrue(test8());
          System.out.println("[ TEST8 ]: PASSED");
+         Lib.assertTrue(test9());
+         System.out.println("[ TEST9 ]: PASSED");
+         Lib.assertTrue(test10());
+         System.out.println("[ TEST10 ]: PASSED");
+         Lib.assertTrue(test11());
+         System.out.println("[ TEST11 ]: PASSED");
+         Lib.assertTrue(test12());
+         System.out.println("[ TEST12 ]: PASSED");
+         Lib.assertTrue(test13());
+         System.out.println("[ TEST13 ]: PASSED");
+         Lib.assertTrue(test14());
+         System.out.println("[ TEST14 ]: PASSED");
     }
 
     // Global configuration and debug parameters 
     private static final char dbgTesting = 'Q';
     private static final boolean EXIT_SUCCESS = true;
     private static final boolean EXIT_FAILURE = false;
+    private static final int replayOps = 20000;
+    private static final long replaySeed = 42;
+    private static final int stealRounds = 4000;
+    private static final int drawRounds = 40000;
+    private static final int bigDrawRounds = 6000;
 }
@@ -0,0 +1,369 @@
+package nachos.threads;
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * A thread's priority is its feedback level and the queues are ordinary
+ * PriorityQueues, one list per level, with priority donation through
+ * transferPriority queues as in PriorityScheduler. New threads start at the
+ * top level. The scheduler watches the ready queue to move threads between
+ * levels:
+ *
+ * <ul>
+ * <li> A thread that comes back to the ready queue having run for at least
+ *      the quantum of its level is demoted one level.
+ * <li> A thread that blocks on any other queue before its quantum is used
+ *      up is promoted one level.
+ * <li> Every boost period all threads are returned to the top level so
+ *      that CPU-bound threads at the bottom cannot starve.
+ * </ul>
+ *
+ * <p>
+ * Lower levels get longer quanta (see setQuantum()). The boost costs
+ * O(levels): the lists of the ready queue are spliced onto its top level in
+ * order, and each thread's own level is brought up to date the next time
+ * it is used, by comparing its levelEpoch with the scheduler's boostEpoch.
+ * This relies on a thread on the ready queue waiting on no other queue,
+ * which is always the case in Nachos. Threads blocked on any other queue
+ * are brought up to date together, and their donations with them, the
+ * first time that queue is waited on or dequeued from after a boost; until
+ * then a holder's effective priority may still reflect its waiters' levels
+ * from before the boost.
+ */
+public class MLFQScheduler extends PriorityScheduler
+{
+    /**
+     * Construct a new MLFQScheduler running under Nachos.
+     */
+    public MLFQScheduler() {
+        this(new NachosHost());
+    }
+
+    /**
+     * Construct a new MLFQScheduler with the default quanta and boost
+     * period.
+     *
+     * @param host  Environment providing the interrupt guard, clock and
+     *              ready queue identity.
+     */
+    public MLFQScheduler(Host host) {
+        super(host);
+        quanta = new long[getPriorityMaximum() + 1];
+        for(int level = 0; level < quanta.length; level++) {
+            quanta[level] = kDefaultTopQuantum << (getPriorityMaximum() - level);
+        }
+        boostPeriod = kDefaultBoostPeriod;
+        lastBoostTime = host.getTime();
+    }
+
+    /**
+     * Allocate a new feedback thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should transfer
+     * priority from waiting thread to the owning thread.
+     * @return a new feedback thread queue.
+     */
+    @Override
+    protected PriorityQueue createQueue(boolean transferPriority) {
+        return new FeedbackQueue(transferPriority);
+    }
+
+    /**
+     * Allocate a new FeedbackThreadState, at the top level.
+     *
+     * @param thread that the state belongs to, or null if headless.
+     * @return FeedbackThreadState for this thread.
+     */
+    @Override
+    protected ThreadState createThreadState(KThread thread) {
+        return new FeedbackThreadState(thread);
+    }
+
+    public static void selfTest() {
+        MLFQSchedulerTest.runall();
+    }
+
+    /**
+     * Set the quantum of a level, in host ticks.
+     *
+     * @param level One of the priorities of this scheduler.
+     * @param ticks Run time after which a thread at level is demoted.
+     */
+    public void setQuantum(int level, long ticks) {
+        Lib.assertTrue(level >= getPriorityMinimum() && level <= getPriorityMaximum());
+        Lib.assertTrue(ticks > 0);
+        quanta[level] = ticks;
+    }
+
+    /** Return the quantum of level, in host ticks. */
+    public long getQuantum(int level) {
+        return quanta[level];
+    }
+
+    /**
+     * Set how often all threads are boosted to the top level, in host ticks.
+     */
+    public void setBoostPeriod(long ticks) {
+        Lib.assertTrue(ticks > 0);
+        boostPeriod = ticks;
+    }
+
+    /**
+     * Return every thread to the top level now.
+     *
+     * Only the ready queue's lists are touched, spliced onto its top level
+     * in level order, so this is O(levels). Every other thread is moved by
+     * refreshBoost() when it is next used.
+     */
+    public void boost() {
+        Lib.assertTrue(host.interruptsDisabled());
+        boostEpoch++;
+        lastBoostTime = host.getTime();
+        if(readyQueue != null) {
+            readyQueue.spliceToTop();
+        }
+    }
+
+    /** Return the number of boosts so far. */
+    public int getBoostCount() {
+        return boostEpoch;
+    }
+
+    /**
+     * FeedbackQueue inner class. Extends PriorityQueue
+     *
+     * On the ready queue, nextThread() starts the chosen thread's quantum
+     * and runs the periodic boost, and waitForAccess() ends the quantum of a
+     * thread coming back. On any other queue waitForAccess() ends the
+     * quantum of a thread that is blocking.
+     */
+    protected class FeedbackQueue extends PriorityQueue
+    {
+        FeedbackQueue(boolean transferPriority) {
+            super(transferPriority);
+            queueEpoch = boostEpoch;
+        }
+
+        /**
+         * Enqueue a thread, first moving it between levels according to how
+         * much of its quantum it used if it was running.
+         */
+        @Override
+        public void waitForAccess(ThreadState ts) {
+            Lib.assertTrue(host.interruptsDisabled());
+            FeedbackThreadState fs = (FeedbackThreadState)ts;
+            boolean ready = isReadyQueue();
+            if(ready) { 
+                readyQueue = this; 
+            } else {
+                refreshWaiters();
+            }
+            fs.refreshBoost();
+
+            if(fs.running) {
+                fs.running = false;
+                int level = fs.getPriority();
+                boolean usedQuantum =
+                    host.getTime() - fs.dispatchTime >= quanta[level];
+                if(ready && usedQuantum && level > getPriorityMinimum()) {
+                    fs.setPriority(level - 1);
+                } else if(!ready && !usedQuantum && level < getPriorityMaximum()) {
+                    fs.setPriority(level + 1);
+                }
+            }
+            super.waitForAccess(ts);
+        }
+
+        /**
+         * Dequeue the next thread. On the ready queue, boost first if the
+         * boost period has passed, and start the quantum of the thread
+         * returned.
+         */
+        @Override
+        public ThreadState nextThreadState() {
+            boolean ready = isReadyQueue();
+            if(ready) {
+                readyQueue = this;
+                if(host.getTime() - lastBoostTime >= boostPeriod) { boost(); }
+            } else {
+                refreshWaiters();
+            }
+            ThreadState next = super.nextThreadState();
+            if(ready && next != null) {
+                FeedbackThreadState fs = (FeedbackThreadState)next;
+                fs.running = true;
+                fs.dispatchTime = host.getTime();
+            }
+            return next;
+        }
+
+        /**
+         * Bring the owner of link up to date with any boost before unlinking
+         * it, since a boost may have spliced it onto another level.
+         */
+        @Override
+        protected boolean removeFromLevel(ThreadState.QueueLink link) {
+            ((FeedbackThreadState)link.getOwner()).refreshBoost();
+            return super.removeFromLevel(link);
+        }
+
+        /** Splice every level below the top onto the top level, in order. */
+        protected void spliceToTop() {
+            int top = getLevelIndex(getPriorityMaximum());
+            for(int level = nextLevelBelow(top); 
+                level != kInvalidQueueIndex; 
+                level = nextLevelBelow(top)) {
+                obtainLevel(top).appendAll(getQueue(level));
+                markLevelEmpty(level);
+                markLevelOccupied(top);
+            }
+        }
+
+        /**
+         * Move every waiter not yet brought up to date with the last boost
+         * to the top level, once per boost. Waiters are visited from the
+         * highest level down, so they keep their relative order as on the
+         * ready queue, and each move updates the donation it makes.
+         */
+        protected void refreshWaiters() {
+            if(queueEpoch == boostEpoch) { return; }
+            queueEpoch = boostEpoch;
+
+            int numWaiters = 0;
+            for(int i = getNextNonemptyQueue();
+                i != kInvalidQueueIndex;
+                i = nextLevelBelow(i)) {
+                numWaiters += getQueue(i).size;
+            }
+            if(numWaiters == 0) { return; }
+
+            FeedbackThreadState[] stale = new FeedbackThreadState[numWaiters];
+            int numStale = 0;
+            for(int i = getNextNonemptyQueue();
+                i != kInvalidQueueIndex;
+                i = nextLevelBelow(i)) {
+                for(ThreadState.QueueLink link = getQueue(i).head;
+                    link != null;
+                    link = link.next) {
+                    FeedbackThreadState fs =
+                        (FeedbackThreadState)link.getOwner();
+                    if(fs.levelEpoch != boostEpoch) { stale[numStale++] = fs; }
+                }
+            }
+            for(int i = 0; i < numStale; i++) {
+                stale[i].refreshBoost();
+            }
+        }
+
+        /** Return true if this is the ready queue. */
+        private boolean isReadyQueue() {
+            return this == host.getReadyQueue();
+        }
+
+        /** Value of boostEpoch when this queue's waiters were last current */
+        private int queueEpoch;
+    } // End of FeedbackQueue class
+
+
+    /**
+     * FeedbackThreadState inner class. Extends ThreadState
+     *
+     * Every entry point that reads or changes the thread's priority first
+     * calls refreshBoost(), so a thread is never seen at a level from
+     * before the last boost.
+     */
+    protected class FeedbackThreadState extends ThreadState
+    {
+        FeedbackThreadState(KThread inThread) {
+            super(inThread);
+            levelEpoch = boostEpoch;
+            setPriority(getPriorityMaximum());
+        }
+
+        /**
+         * Move this thread to the top level if a boost has happened since
+         * its level was last set.
+         *
+         * A thread that was on the ready queue during the boost is already
+         * on the top level's list, so only its link and priority are
+         * corrected. Any other thread is moved with setPriority().
+         */
+        protected void refreshBoost() {
+            if(levelEpoch == boostEpoch) { return; }
+            levelEpoch = boostEpoch;
+            QueueLink link =
+                readyQueue == null ? null : getQueueLink(readyQueue);
+            if(link != null) {
+                Lib.assertTrue(
+                    queuesThisThreadIsOn == link
+                    && link.nextQueue == null
+                    && donationsMade == null
+                );
+                link.level = readyQueue.getLevelIndex(getPriorityMaximum());
+                priority = getPriorityMaximum();
+            } else {
+                setPriority(getPriorityMaximum());
+            }
+        }
+
+        @Override
+        public int getPriority() {
+            refreshBoost();
+            return super.getPriority();
+        }
+
+        @Override
+        public int getEffectivePriority() {
+            refreshBoost();
+            return super.getEffectivePriority();
+        }
+
+        @Override
+        public void setPriority(int inPriority) {
+            refreshBoost();
+            super.setPriority(inPriority);
+        }
+
+        @Override
+        protected void receiveOffer(long offer, ThreadState donor, PriorityQueue waitQueue) {
+            refreshBoost();
+            super.receiveOffer(offer, donor, waitQueue);
+        }
+
+        @Override
+        public void revokeDonation(DonationTracker donor) {
+            refreshBoost();
+            super.revokeDonation(donor);
+        }
+
+        /** Value of boostEpoch when this thread's level was last current */
+        protected int levelEpoch;
+
+        /** True from dispatch off the ready queue until the thread waits */
+        protected boolean running;
+
+        /** Host time of the last dispatch off the ready queue */
+        protected long dispatchTime;
+    } // End of FeedbackThreadState class
+
+    /** Quantum of each level, in host ticks */
+    private final long[] quanta;
+
+    /** Host ticks between boosts, and time of the last one */
+    private long boostPeriod;
+    private long lastBoostTime;
+
+    /** Number of boosts so far */
+    private int boostEpoch = 0;
+
+    /** The ready queue, once it has been used */
+    private FeedbackQueue readyQueue = null;
+
+    /** Default quantum of the top level; each level down doubles it. */
+    public static final long kDefaultTopQuantum = 500;
+
+    /** Default host ticks between boosts. */
+    public static final long kDefaultBoostPeriod = 100000;
+}
@@ -0,0 +1,213 @@
+/**
+ * Test the functionality of the MLFQScheduler class.
+ *
+ * Calling symantics: - Run a single test contained herein:
+ * MLFQSchedulerTest.testx() for test number x.  - Run all tests contained
+ * hereing: MLFQSchedulerTest.runall().
+ *
+ * Every test runs a headless scheduler (see PriorityScheduler.HeadlessHost)
+ * with one of its queues named as the ready queue, and moves the virtual
+ * clock by hand to stand in for threads running.
+ *
+ * To see DEBUGGING output on the console, run nachos with the -d F switch
+ * (along with any other debugging flags, of course.
+ */
+package nachos.threads;
+import nachos.threads.*;
+import nachos.machine.*;
+
+public class MLFQSchedulerTest
+{
+    // A thread that runs out its quantum drops a level, and a thread that
+    // blocks early on another queue climbs one.
+    public static boolean test1()
+    {
+        Lib.debug(dbgTesting, "[ TEST1 ]: Entered TEST1");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        MLFQScheduler scheduler = new MLFQScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue ready = newReadyQueue(scheduler, host);
+        PriorityScheduler.PriorityQueue semaphore =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.ThreadState cpuBound = scheduler.newThreadState();
+        PriorityScheduler.ThreadState ioBound = scheduler.newThreadState();
+        int top = scheduler.getPriorityMaximum();
+        boolean startsAtTop = cpuBound.getPriority() == top;
+        ioBound.setPriority(3);
+
+        ready.waitForAccess(cpuBound);
+        ready.nextThreadState();
+        host.advanceTime(scheduler.getQuantum(top));
+        ready.waitForAccess(cpuBound);
+        boolean demoted = cpuBound.getPriority() == top - 1;
+
+        ready.waitForAccess(ioBound);
+        ready.nextThreadState();
+        ready.nextThreadState();
+        host.advanceTime(1);
+        semaphore.waitForAccess(ioBound);
+        boolean promoted = ioBound.getPriority() == 4;
+        host.restoreInterrupts(st);
+
+        if(startsAtTop && demoted && promoted)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST1 ]: ERROR: Failed test1. startsAtTop " + startsAtTop + " demoted " + demoted + " promoted " + promoted);
+        return EXIT_FAILURE;
+    }
+
+    // A boost moves the ready queue onto its top level in order, and moves
+    // a blocked thread up on its own queue the next time it is looked at.
+    public static boolean test2()
+    {
+        Lib.debug(dbgTesting, "[ TEST2 ]: Entered TEST2");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        MLFQScheduler scheduler = new MLFQScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue ready = newReadyQueue(scheduler, host);
+        PriorityScheduler.PriorityQueue lock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState first = scheduler.newThreadState();
+        PriorityScheduler.ThreadState second = scheduler.newThreadState();
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState blocked = scheduler.newThreadState();
+        int top = scheduler.getPriorityMaximum();
+        first.setPriority(0);
+        second.setPriority(2);
+        holder.setPriority(0);
+        blocked.setPriority(1);
+
+        lock.acquire(holder);
+        lock.waitForAccess(blocked);
+        ready.waitForAccess(first);
+        ready.waitForAccess(second);
+        ready.waitForAccess(holder);
+        scheduler.boost();
+        boolean spliced =
+            ready.getLevelDepth(top) == 3
+            && ready.getLevelDepth(0) == 0
+            && ready.getLevelDepth(2) == 0;
+        boolean blockedMoved =
+            blocked.getPriority() == top
+            && lock.getLevelDepth(top) == 1
+            && holder.getEffectivePriority() == top;
+        boolean order =
+            ready.nextThreadState() == second
+            && ready.nextThreadState() == holder
+            && ready.nextThreadState() == first;
+        host.restoreInterrupts(st);
+
+        if(spliced && blockedMoved && order)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST2 ]: ERROR: Failed test2. spliced " + spliced + " blockedMoved " + blockedMoved + " order " + order);
+        return EXIT_FAILURE;
+    }
+
+    // A thread demoted to the bottom behind a stream of top level threads
+    // still runs once the boost period passes.
+    public static boolean test3()
+    {
+        Lib.debug(dbgTesting, "[ TEST3 ]: Entered TEST3");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        MLFQScheduler scheduler = new MLFQScheduler(host);
+        scheduler.setBoostPeriod(10000);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue ready = newReadyQueue(scheduler, host);
+        PriorityScheduler.ThreadState starved = scheduler.newThreadState();
+        PriorityScheduler.ThreadState hog = scheduler.newThreadState();
+        starved.setPriority(0);
+
+        ready.waitForAccess(starved);
+        ready.waitForAccess(hog);
+        boolean ran = false;
+        for(int i = 0; i < 200 && !ran; i++) {
+            PriorityScheduler.ThreadState next = ready.nextThreadState();
+            ran = next == starved;
+            host.advanceTime(100);
+            if(next == hog) { ready.waitForAccess(hog); }
+        }
+        host.restoreInterrupts(st);
+
+        if(ran && scheduler.getBoostCount() == 1)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST3 ]: ERROR: Failed test3. ran " + ran + " boosts " + scheduler.getBoostCount());
+        return EXIT_FAILURE;
+    }
+
+    // Threads blocked on a lock when a boost happens are moved up together,
+    // in their order of level, the next time the lock is waited on, and the
+    // holder's donation is brought up to date with them.
+    public static boolean test4()
+    {
+        Lib.debug(dbgTesting, "[ TEST4 ]: Entered TEST4");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        MLFQScheduler scheduler = new MLFQScheduler(host);
+        boolean st = host.disableInterrupts();
+        newReadyQueue(scheduler, host);
+        PriorityScheduler.PriorityQueue lock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState low = scheduler.newThreadState();
+        PriorityScheduler.ThreadState high = scheduler.newThreadState();
+        PriorityScheduler.ThreadState late = scheduler.newThreadState();
+        int top = scheduler.getPriorityMaximum();
+        holder.setPriority(0);
+        low.setPriority(1);
+        high.setPriority(3);
+
+        lock.acquire(holder);
+        lock.waitForAccess(low);
+        lock.waitForAccess(high);
+        scheduler.boost();
+        holder.setPriority(0);
+        late.setPriority(0);
+        boolean staleUntilUsed = holder.getEffectivePriority() == 3;
+
+        lock.waitForAccess(late);
+        boolean refreshed =
+            lock.getLevelDepth(top) == 2
+            && lock.getLevelDepth(3) == 0
+            && holder.getEffectivePriority() == top;
+        boolean order =
+            lock.nextThreadState() == high
+            && lock.nextThreadState() == low
+            && lock.nextThreadState() == late;
+        host.restoreInterrupts(st);
+
+        if(staleUntilUsed && refreshed && order)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST4 ]: ERROR: Failed test4. staleUntilUsed " + staleUntilUsed + " refreshed " + refreshed + " order " + order);
+        return EXIT_FAILURE;
+    }
+
+    // Create a queue and name it as the ready queue of host
+    private static PriorityScheduler.PriorityQueue newReadyQueue(
+        MLFQScheduler scheduler,
+        PriorityScheduler.HeadlessHost host) {
+        PriorityScheduler.PriorityQueue ready =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        host.setReadyQueue(ready);
+        return ready;
+    }
+
+    // Run all tests defined here
+    public static void runall()
+    {
+        Lib.assertTrue(test1());
+        System.out.println("[ TEST1 ]: PASSED");
+        Lib.assertTrue(test2());
+        System.out.println("[ TEST2 ]: PASSED");
+        Lib.assertTrue(test3());
+        System.out.println("[ TEST3 ]: PASSED");
+        Lib.assertTrue(test4());
+        System.out.println("[ TEST4 ]: PASSED");
+    }
+
+    // Global configuration and debug parameters
+    private static final char dbgTesting = 'F';
+    private static final boolean EXIT_SUCCESS = true;
+    private static final boolean EXIT_FAILURE = false;
+}
@@ -0,0 +1,495 @@
+package nachos.threads;
+import nachos.machine.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An Executor that runs tasks in the order a PriorityScheduler would run
+ * threads.
+ *
+ * <p>
+ * Each task is given a ThreadState and waits on a plain ready queue of the
+ * scheduler until one of a fixed pool of carrier threads takes it with
+ * nextThread(). Tasks run to completion on their carrier. PriorityLocks
+ * made by the executor are transferPriority queues, so a task blocked on
+ * one donates to the holder, and the lock is handed to the waiter the
+ * scheduler picks: the highest effective priority under PriorityScheduler,
+ * a ticket draw under LotteryScheduler, and so on.
+ *
+ * <p>
+ * The scheduler runs on a ConcurrentHost and every engine call is made with
+ * its guard held exclusively, so the executor adds no locking of its own.
+ * The guard is restored however a call ends, so a call that is turned
+ * away, such as execute() at a priority outside the scheduler's range or
+ * release() by a task not holding the lock, fails only its caller.
+ * Submitting a task costs one enqueue; ThreadStates are kept on a free
+ * list and reused, so a stream of short tasks allocates nothing in the
+ * engine once the pool has grown to the number of tasks outstanding.
+ *
+ * <p>
+ * A task should release every PriorityLock it acquires before it returns.
+ * Any lock it still holds when it returns or throws is released for it, so
+ * that its ThreadState can be reused by a later task. A task that throws,
+ * even an Error, is counted by getNumFailed() and the throwable is passed
+ * to the executor's UncaughtExceptionHandler; its carrier then goes on to
+ * the next task.
+ */
+public class PriorityExecutor implements Executor
+{
+    /**
+     * Create an executor with numCarriers carriers and a PriorityScheduler.
+     */
+    public PriorityExecutor(int numCarriers) {
+        this(new ConcurrentScheduler.ConcurrentHost(), numCarriers, false);
+    }
+
+    /**
+     * Create an executor with numCarriers carriers.
+     *
+     * @param host          Host to run the scheduler on.
+     * @param numCarriers   Number of threads running tasks.
+     * @param lottery       Schedule by lottery instead of strict priority.
+     */
+    public PriorityExecutor(
+        ConcurrentScheduler.ConcurrentHost host,
+        int numCarriers,
+        boolean lottery) {
+        Lib.assertTrue(numCarriers > 0);
+        this.host = host;
+        scheduler = lottery ? new LotteryScheduler(host) : new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        readyQueue = (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        host.restoreInterrupts(st);
+
+        carriers = new Thread[numCarriers];
+        idleCarriers = new Thread[numCarriers];
+        for(int i = 0; i < numCarriers; i++) {
+            carriers[i] = new Thread(new Runnable() {
+                public void run() { runCarrier(); }
+            }, "PriorityExecutor carrier " + i);
+            carriers[i].setDaemon(true);
+            carriers[i].start();
+        }
+    }
+
+    /** Run task at the scheduler's default priority. */
+    public void execute(Runnable task) {
+        execute(task, PriorityScheduler.priorityDefault);
+    }
+
+    /**
+     * Run task at priority.
+     *
+     * @param task      The work to do.
+     * @param priority  A priority of the scheduler.
+     * @throws IllegalArgumentException if priority is outside the 
+     *         scheduler's range.
+     */
+    public void execute(Runnable task, int priority) {
+        Lib.assertTrue(task != null);
+        if(priority < scheduler.getPriorityMinimum() 
+            || priority > scheduler.getPriorityMaximum()) {
+            throw new IllegalArgumentException("priority " + priority + " out of range");
+        }
+        Thread carrier = null;
+        boolean st = host.disableInterrupts();
+        try {
+            Lib.assertTrue(!shutdown);
+            Task t = allocateTask();
+            t.runnable = task;
+            t.state.setPriority(priority);
+            readyQueue.waitForAccess(t.state);
+            if(numIdle > 0) {
+                carrier = idleCarriers[--numIdle];
+            }
+        } finally {
+            host.restoreInterrupts(st);
+        }
+        if(carrier != null) { LockSupport.unpark(carrier); }
+    }
+
+    /**
+     * Make a lock that donates priority from its waiters to its holder.
+     */
+    public PriorityLock newLock() {
+        boolean st = host.disableInterrupts();
+        PriorityLock lock = new PriorityLock(
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true)
+        );
+        host.restoreInterrupts(st);
+        return lock;
+    }
+
+    /**
+     * Stop accepting tasks. Carriers exit once the ready queue is empty.
+     */
+    public void shutdown() {
+        boolean st = host.disableInterrupts();
+        shutdown = true;
+        host.restoreInterrupts(st);
+        for(int i = 0; i < carriers.length; i++) {
+            LockSupport.unpark(carriers[i]);
+        }
+    }
+
+    /**
+     * Wait for every carrier to exit after shutdown().
+     */
+    public void awaitTermination() throws InterruptedException {
+        for(int i = 0; i < carriers.length; i++) {
+            carriers[i].join();
+        }
+    }
+
+    /**
+     * Set the handler that is passed whatever a task throws, along with
+     * the carrier that ran it. With no handler set, the carrier's own
+     * uncaught exception handler is used, which by default prints the
+     * stack trace.
+     *
+     * @param handler   Handler for task failures, or null.
+     */
+    public void setUncaughtExceptionHandler(Thread.UncaughtExceptionHandler handler) {
+        failureHandler = handler;
+    }
+
+    /** Return the scheduler ordering the tasks. */
+    public PriorityScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /** Return the number of tasks run so far. */
+    public long getNumCompleted() {
+        boolean st = host.disableInterrupts();
+        long completed = numCompleted;
+        host.restoreInterrupts(st);
+        return completed;
+    }
+
+    /** Return the number of tasks that threw. */
+    public long getNumFailed() {
+        boolean st = host.disableInterrupts();
+        long failed = numFailed;
+        host.restoreInterrupts(st);
+        return failed;
+    }
+
+    /** Return the effective priority of ts, including donations. */
+    public int getEffectivePriority(PriorityScheduler.ThreadState ts) {
+        boolean st = host.disableInterrupts();
+        int priority = ts.getEffectivePriority();
+        host.restoreInterrupts(st);
+        return priority;
+    }
+
+    /**
+     * Return the ThreadState of the task running on the calling thread, or
+     * null if it is not a carrier.
+     */
+    public PriorityScheduler.ThreadState currentState() {
+        Task t = current.get();
+        return t == null ? null : t.state;
+    }
+
+    /**
+     * PriorityLock inner class. A mutual exclusion lock for tasks of this
+     * executor, handed from holder to waiter by a transferPriority queue.
+     */
+    public class PriorityLock
+    {
+        PriorityLock(PriorityScheduler.PriorityQueue queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Acquire the lock, blocking the calling task's carrier until it is
+         * handed over.
+         */
+        public void acquire() {
+            Task self = current.get();
+            Lib.assertTrue(self != null);
+            boolean st = host.disableInterrupts();
+            try {
+                Lib.assertTrue(holder != self);
+                if(holder == null) {
+                    queue.acquire(self.state);
+                    holder = self;
+                    addHeld(self);
+                    return;
+                }
+                self.granted = false;
+                queue.waitForAccess(self.state);
+                numWaiters++;
+            } finally {
+                host.restoreInterrupts(st);
+            }
+            while(!self.granted) {
+                LockSupport.park(this);
+            }
+        }
+
+        /** Release the lock, handing it to the waiter the scheduler picks. */
+        public void release() {
+            Task self = current.get();
+            Task successor;
+            boolean st = host.disableInterrupts();
+            try {
+                Lib.assertTrue(holder == self);
+                successor = handOff();
+            } finally {
+                host.restoreInterrupts(st);
+            }
+            grant(successor);
+        }
+
+        /** Return true if the calling task holds this lock. */
+        public boolean isHeldByCurrentTask() {
+            Task self = current.get();
+            boolean st = host.disableInterrupts();
+            boolean held = self != null && holder == self;
+            host.restoreInterrupts(st);
+            return held;
+        }
+
+        /** Return the number of tasks waiting for this lock. */
+        public int getWaiterCount() {
+            boolean st = host.disableInterrupts();
+            int waiters = numWaiters;
+            host.restoreInterrupts(st);
+            return waiters;
+        }
+
+        /**
+         * Take the lock from its holder and give it to the waiter the 
+         * scheduler picks. Must be called with the host guard held.
+         *
+         * @return the new holder, which grant() must wake once the guard 
+         *         is dropped, or null if nobody was waiting.
+         */
+        private Task handOff() {
+            removeHeld(holder);
+            PriorityScheduler.ThreadState next = queue.nextThreadState();
+            Task successor = next == null ? null : getTask(next);
+            holder = successor;
+            if(successor != null) { 
+                numWaiters--; 
+                addHeld(successor);
+            }
+            return successor;
+        }
+
+        /** Wake successor, if any, to run with the lock. */
+        private void grant(Task successor) {
+            if(successor != null) {
+                successor.granted = true;
+                LockSupport.unpark(successor.carrier);
+            }
+        }
+
+        /** Push this lock onto the locks held by t. */
+        private void addHeld(Task t) {
+            nextHeld = t.heldLocks;
+            t.heldLocks = this;
+        }
+
+        /** Unlink this lock from the locks held by t. */
+        private void removeHeld(Task t) {
+            if(t.heldLocks == this) {
+                t.heldLocks = nextHeld;
+            } else {
+                PriorityLock lock = t.heldLocks;
+                while(lock.nextHeld != this) { 
+                    lock = lock.nextHeld; 
+                }
+                lock.nextHeld = nextHeld;
+            }
+            nextHeld = null;
+        }
+
+        private final PriorityScheduler.PriorityQueue queue;
+
+        /** Task holding the lock and number waiting, guarded by the host */
+        private Task holder = null;
+        private int numWaiters = 0;
+
+        /** Next lock held by the same task, guarded by the host */
+        private PriorityLock nextHeld = null;
+    } // End of PriorityLock class
+
+    /**
+     * Task inner class. A runnable bound to the ThreadState it is scheduled
+     * by; recycled through freeTasks once it has run.
+     */
+    private class Task
+    {
+        Task() {
+            state = scheduler.newThreadState();
+            int id = state.traceID;
+            if(id >= tasks.length) {
+                Task[] grown = new Task[Math.max(id + 1, tasks.length * 2)];
+                System.arraycopy(tasks, 0, grown, 0, tasks.length);
+                tasks = grown;
+            }
+            tasks[id] = this;
+        }
+
+        final PriorityScheduler.ThreadState state;
+        Runnable runnable;
+
+        /** Carrier running this task */
+        Thread carrier;
+
+        /** Set when a PriorityLock is handed to this task */
+        volatile boolean granted;
+
+        /** Most recently acquired lock held, guarded by the host */
+        PriorityLock heldLocks;
+
+        /** Next free task */
+        Task nextFree;
+    } // End of Task class
+
+    /** Take the next task off the ready queue and run it, until shutdown. */
+    private void runCarrier() {
+        Thread self = Thread.currentThread();
+        while(true) {
+            Task t = null;
+            boolean st = host.disableInterrupts();
+            try {
+                PriorityScheduler.ThreadState next = readyQueue.nextThreadState();
+                if(next != null) {
+                    t = getTask(next);
+                } else if(shutdown) {
+                    return;
+                } else {
+                    idleCarriers[numIdle++] = self;
+                }
+            } finally {
+                host.restoreInterrupts(st);
+            }
+
+            if(t == null) {
+                LockSupport.park(this);
+                st = host.disableInterrupts();
+                try {
+                    removeIdle(self);
+                } finally {
+                    host.restoreInterrupts(st);
+                }
+                continue;
+            }
+
+            Throwable failure = null;
+            t.carrier = self;
+            current.set(t);
+            try {
+                t.runnable.run();
+            } catch(Throwable e) {
+                failure = e;
+            } finally {
+                current.set(null);
+                releaseHeldLocks(t);
+            }
+
+            st = host.disableInterrupts();
+            try {
+                if(failure != null) { numFailed++; }
+                numCompleted++;
+                freeTask(t);
+            } finally {
+                host.restoreInterrupts(st);
+            }
+            if(failure != null) { reportFailure(self, failure); }
+        }
+    }
+
+    /** Release every PriorityLock t still holds, latest acquired first. */
+    private void releaseHeldLocks(Task t) {
+        while(true) {
+            PriorityLock lock;
+            Task successor;
+            boolean st = host.disableInterrupts();
+            try {
+                lock = t.heldLocks;
+                successor = lock == null ? null : lock.handOff();
+            } finally {
+                host.restoreInterrupts(st);
+            }
+            if(lock == null) { return; }
+            lock.grant(successor);
+        }
+    }
+
+    /**
+     * Pass what a task threw to the failure handler. A handler that throws 
+     * in turn is ignored, so that the carrier survives it.
+     */
+    private void reportFailure(Thread carrier, Throwable failure) {
+        Thread.UncaughtExceptionHandler handler = failureHandler;
+        if(handler == null) { 
+            handler = carrier.getUncaughtExceptionHandler(); 
+        }
+        try {
+            handler.uncaughtException(carrier, failure);
+        } catch(Throwable e) {
+        }
+    }
+
+    /** Return a task from the free list, or a new one. */
+    private Task allocateTask() {
+        Task t = freeTasks;
+        if(t == null) { return new Task(); }
+        freeTasks = t.nextFree;
+        t.nextFree = null;
+        return t;
+    }
+
+    /** Put t on the free list. */
+    private void freeTask(Task t) {
+        Lib.assertTrue(t.heldLocks == null);
+        t.runnable = null;
+        t.carrier = null;
+        t.nextFree = freeTasks;
+        freeTasks = t;
+    }
+
+    /** Return the task scheduled by ts. */
+    private Task getTask(PriorityScheduler.ThreadState ts) {
+        return tasks[ts.traceID];
+    }
+
+    /** Take carrier off the idle list if an unpark did not already. */
+    private void removeIdle(Thread carrier) {
+        for(int i = 0; i < numIdle; i++) {
+            if(idleCarriers[i] == carrier) {
+                idleCarriers[i] = idleCarriers[--numIdle];
+                return;
+            }
+        }
+    }
+
+    private final ConcurrentScheduler.ConcurrentHost host;
+    private final PriorityScheduler scheduler;
+    private final PriorityScheduler.PriorityQueue readyQueue;
+    private final Thread[] carriers;
+
+    /** Task running on each carrier */
+    private final ThreadLocal<Task> current = new ThreadLocal<Task>();
+
+    /** Handler for task failures, or null for the carrier's own */
+    private volatile Thread.UncaughtExceptionHandler failureHandler = null;
+
+    /* Everything below is guarded by the host. */
+
+    /** Every task made, indexed by the traceID of its ThreadState */
+    private Task[] tasks = new Task[16];
+    private Task freeTasks = null;
+
+    /** Carriers parked waiting for a task */
+    private final Thread[] idleCarriers;
+    private int numIdle = 0;
+
+    private long numCompleted = 0;
+    private long numFailed = 0;
+    private boolean shutdown = false;
+}
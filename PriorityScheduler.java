@@ -1,8 +1,6 @@
 package nachos.threads;
 import nachos.machine.*;
-import java.util.HashSet;
 import java.util.TreeSet;
-import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -23,15 +21,34 @@ import java.util.LinkedList;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Everything the scheduling engine needs from Nachos (the interrupt guard, 
+ * the clock and the identity of the ready queue) goes through a Host. The 
+ * default NachosHost forwards to Machine and KThread. With a HeadlessHost the 
+ * engine runs standalone, driven through newThreadState(), 
+ * PriorityQueue.waitForAccess(ThreadState), acquire(ThreadState) and 
+ * nextThreadState() without any KThread or simulated machine.
  */
 public class PriorityScheduler extends Scheduler 
 {
 
     /**
-     * Construct a new PriorityScheduler. Warn users if asserts are enabled.
+     * Construct a new PriorityScheduler running under Nachos. 
      */
     public PriorityScheduler() {
-        string warningString = 
+        this(new NachosHost());
+    }
+
+    /**
+     * Construct a new PriorityScheduler. Warn users if asserts are enabled.
+     *
+     * @param host  Environment providing the interrupt guard, clock and 
+     *              ready queue identity.
+     */
+    public PriorityScheduler(Host host) {
+        this.host = host;
+        String warningString = 
             " ********* Asserts enabled in PriorityScheduler ********** ";
 
         if(isAssertEnabled) {
@@ -47,28 +64,120 @@ public class PriorityScheduler extends Scheduler
     }
 
     /**
-     * Allocate a new priority thread queue.
+     * Allocate a new priority thread queue, reusing a recycled one if 
+     * queue pooling is on.
      *
      * @param transferPriority <tt>true</tt> if this queue should transfer 
      * priority from waiting thread to the owning thread.
      * @return a new priority thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
+        PriorityQueue queue = transferPriority ? pooledDonatingQueues : pooledPlainQueues;
+        if(queue == null) { return createQueue(transferPriority); }
+        if(transferPriority) {
+            pooledDonatingQueues = queue.nextPooled;
+        } else {
+            pooledPlainQueues = queue.nextPooled;
+        }
+        queue.nextPooled = null;
+        queue.pooled = false;
+        numPooledQueues--;
+        return queue;
+    }
+
+    /**
+     * Allocate a queue of the kind this scheduler uses. 
+     *
+     * @param transferPriority <tt>true</tt> if this queue should transfer 
+     * priority from waiting thread to the owning thread.
+     * @return a new priority thread queue.
+     */
+    protected PriorityQueue createQueue(boolean transferPriority) {
         return new PriorityQueue(transferPriority);
     }
 
+    /**
+     * Keep up to size recycled queues for newThreadQueue() to hand out 
+     * again. Pooling is off (size 0) by default. Shrinking the pool drops 
+     * the queues over the new size.
+     *
+     * @param size  Most queues to keep, of both kinds together.
+     */
+    public void setQueuePoolSize(int size) {
+        Lib.assertTrue(size >= 0);
+        queuePoolSize = size;
+        while(numPooledQueues > size) {
+            PriorityQueue dropped;
+            if(pooledDonatingQueues != null) {
+                dropped = pooledDonatingQueues;
+                pooledDonatingQueues = dropped.nextPooled;
+            } else {
+                dropped = pooledPlainQueues;
+                pooledPlainQueues = dropped.nextPooled;
+            }
+            dropped.nextPooled = null;
+            dropped.pooled = false;
+            numPooledQueues--;
+        }
+    }
+
+    /** Return the number of recycled queues waiting to be reused. */
+    public int getNumPooledQueues() {
+        return numPooledQueues;
+    }
+
+    /**
+     * Return a queue its owner is finished with so newThreadQueue() can 
+     * hand it out again. The queue must be drained: no thread waiting on 
+     * it and, if it transfers priority, no resource holder. The caller 
+     * must not use it afterwards. A reused queue keeps its traceID, so a 
+     * trace sees its lives as one queue.
+     *
+     * These conditions are checked on every call, not only when asserts 
+     * are enabled: a queue that fails them is left alone rather than 
+     * handed to a later newThreadQueue() caller.
+     *
+     * @param threadQueue   A queue made by this scheduler.
+     * @return true if the queue was pooled, false if pooling is off, the 
+     *         pool is full, or the queue is not this scheduler's, is 
+     *         already pooled, is the ready queue or is not drained.
+     */
+    public boolean recycleThreadQueue(ThreadQueue threadQueue) {
+        if(!(threadQueue instanceof PriorityQueue)) { return false; }
+        PriorityQueue queue = (PriorityQueue)threadQueue;
+        if(queue.getScheduler() != this 
+            || queue.pooled
+            || queue.getNextNonemptyQueue() != kInvalidQueueIndex
+            || (queue.transferPriority && queue.resourceHolder != null)
+            || queue == host.getReadyQueue()) {
+            return false;
+        }
+        if(numPooledQueues >= queuePoolSize) { return false; }
+        queue.resetForReuse();
+        queue.pooled = true;
+        if(queue.transferPriority) {
+            queue.nextPooled = pooledDonatingQueues;
+            pooledDonatingQueues = queue;
+        } else {
+            queue.nextPooled = pooledPlainQueues;
+            pooledPlainQueues = queue;
+        }
+        numPooledQueues++;
+        return true;
+    }
+
     public int getPriority(KThread thread) {
-        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(host.interruptsDisabled());
         return getThreadState(thread).getPriority();
     }
 
     public int getEffectivePriority(KThread thread) {
-        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(host.interruptsDisabled());
         return getThreadState(thread).getEffectivePriority();
     }
 
     public void setPriority(KThread thread, int priority) {
-        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(host.interruptsDisabled());
         Lib.assertTrue(
             priority >= getPriorityMinimum() 
             && priority <= getPriorityMaximum()
@@ -81,14 +190,14 @@ public class PriorityScheduler extends Scheduler
     }
 
     public boolean increasePriority() {
-        boolean intStatus = Machine.interrupt().disable();
+        boolean intStatus = host.disableInterrupts();
         KThread thread = KThread.currentThread();
         int priority = getPriority(thread);
         if (priority == priorityMaximum)
             return false;
 
         setPriority(thread, priority+1);
-        Machine.interrupt().restore(intStatus);
+        host.restoreInterrupts(intStatus);
         return true;
     }
 
@@ -96,12 +205,12 @@ public class PriorityScheduler extends Scheduler
      * Decrement a Tread's priority by 1.
      */
     public boolean decreasePriority() {
-        boolean intStatus = Machine.interrupt().disable();
+        boolean intStatus = host.disableInterrupts();
         KThread thread = KThread.currentThread();
         int priority = getPriority(thread);
         if (priority == priorityMinimum) { return false; }
         setPriority(thread, priority-1);
-        Machine.interrupt().restore(intStatus);
+        host.restoreInterrupts(intStatus);
         return true;
     }
 
@@ -141,32 +250,100 @@ public class PriorityScheduler extends Scheduler
      */
     protected ThreadState getThreadState(KThread thread) {
         if (thread.schedulingState == null) {
-            thread.schedulingState = new ThreadState(thread);
+            thread.schedulingState = createThreadState(thread);
         }
         return (ThreadState) thread.schedulingState;
     }
 
-    /** A ThreadQueue that sorts threads by priority. */
+    /**
+     * Allocate scheduling state of the kind this scheduler uses. 
+     *
+     * @param   thread  The thread the state belongs to, or null for a 
+     *                  headless thread.
+     * @return new scheduling state at the default priority.
+     */
+    protected ThreadState createThreadState(KThread thread) {
+        return new ThreadState(thread);
+    }
+
+    /**
+     * Allocate scheduling state for a thread that is not a KThread. This is 
+     * the thread handle used when running the engine under a HeadlessHost.
+     *
+     * @return new scheduling state at the default priority.
+     */
+    public ThreadState newThreadState() {
+        Lib.assertTrue(host.interruptsDisabled());
+        return createThreadState(null);
+    }
+
+    /**
+     * Record scheduler events to trace, or stop recording if trace is null.
+     * Threads and queues are identified in the trace by their traceID.
+     *
+     * @param trace Trace to append events to.
+     */
+    public void setTrace(SchedulerTrace trace) {
+        this.trace = trace;
+    }
+
+    /** Return the trace events are being recorded to, or null. */
+    public SchedulerTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Append an event to the trace. Callers check that trace is non-null 
+     * first so that untraced schedulers only pay for the test.
+     *
+     * @param event One of the SchedulerTrace.kEvent constants.
+     * @param ts    Thread the event is about, or null.
+     * @param queue Queue involved, or null.
+     * @param other Donor for donation events, or null.
+     * @param value Priority, offer or donation.
+     */
+    protected void traceEvent(int event, ThreadState ts, PriorityQueue queue, ThreadState other, long value) {
+        trace.record(
+            event,
+            (queue != null && queue.transferPriority) ? SchedulerTrace.kFlagTransferPriority : 0,
+            host.getTime(),
+            ts == null ? SchedulerTrace.kNone : ts.traceID,
+            queue == null ? SchedulerTrace.kNone : queue.traceID,
+            other == null ? SchedulerTrace.kNone : other.traceID,
+            value
+        );
+    }
+
+    /** 
+     * A ThreadQueue that sorts threads by priority. 
+     *
+     * Levels are created when a thread first waits at them, so a queue 
+     * nobody has waited on holds no level storage. A queue of at most 
+     * kMaxDenseLevels levels indexes them with an array and level bitmap. 
+     * A wider one (up to level Integer.MAX_VALUE) keeps only its occupied 
+     * levels, in a sorted array searched by binary search, and recycles 
+     * levels as they empty, so its footprint follows the number of 
+     * occupied levels rather than the range. 
+     */
     protected class PriorityQueue extends ThreadQueue 
     {
-        protected LinkedList<ThreadState>[] arrayOfQueues; 
+        /** Levels by index, or null until first used. Dense queues only. */
+        protected LevelList[] arrayOfQueues; 
 
         /**
          * Construct a new PriorityQueue. 
          *
          * @param   transferPriority    Indicate whether to enable priority 
          *                              transfer.
-         * @param   queueMax            Number of discrete priorities this 
-         *                              queue supports
+         * @param   queueMax            Highest level index this queue 
+         *                              supports
          */
         PriorityQueue(boolean transferPriority, int queueMax) {
+            Lib.assertTrue(queueMax >= 0);
             checkMode = kCheckModePriority;
             this.transferPriority = transferPriority;
-            arrayOfQueues = new LinkedList[queueMax+1];
-            
-            for(int i=0; i<=queueMax; i++) {
-                arrayOfQueues[i] = new LinkedList<ThreadState>();
-            }
+            this.queueMax = queueMax;
+            sparse = queueMax >= kMaxDenseLevels;
         }
 
 
@@ -181,19 +358,265 @@ public class PriorityScheduler extends Scheduler
 
         
         /** 
-         * Return a queue from the arrayOfQueues.
+         * Return a level for reading. A level that has not been created is 
+         * returned as the shared kEmptyLevel, which must not be modified; 
+         * use obtainLevel() to add to a level.
          *
-         * @param   index   Item location of queue in arrayOfQueues
-         * @return LinkedList of ThreadStates
+         * @param   index   Level index, from getLevelIndex()
+         * @return LevelList of ThreadStates
          */
-        protected LinkedList<ThreadState> getQueue(int index) { 
-            return arrayOfQueues[index]; 
+        protected LevelList getQueue(int index) { 
+            LevelList level;
+            if(sparse) {
+                int pos = findSparseLevel(index);
+                level = pos < 0 ? null : sparseLevels[pos];
+            } else {
+                level = arrayOfQueues == null ? null : arrayOfQueues[index];
+            }
+            return level == null ? kEmptyLevel : level; 
         }    
 
 
-        /** Return the number of queues in arrayOfQueues */
-        protected int getQueueSize() { 
-            return arrayOfQueues.length; 
+        /**
+         * Return the level at index, creating it if needed. A sparse queue 
+         * indexes the level straight away, so it must be non-empty by the 
+         * time the caller is done with it. 
+         *
+         * @param   index   Level index, from getLevelIndex()
+         * @return LevelList of ThreadStates
+         */
+        protected LevelList obtainLevel(int index) {
+            Lib.assertTrue(index >= 0 && index <= queueMax);
+            if(sparse) {
+                int pos = findSparseLevel(index);
+                return pos >= 0 ? sparseLevels[pos] : insertSparseLevel(-pos - 1, index);
+            }
+            if(arrayOfQueues == null) {
+                arrayOfQueues = new LevelList[queueMax + 1];
+                int numWords = (queueMax >> kLog2BitsPerWord) + 1;
+                levelBitmap = new long[numWords];
+                levelSummary = new long[((numWords-1) >> kLog2BitsPerWord) + 1];
+            }
+            LevelList level = arrayOfQueues[index];
+            if(level == null) {
+                level = new LevelList();
+                arrayOfQueues[index] = level;
+            }
+            return level;
+        }
+
+
+        /**
+         * Binary search the occupied levels of a sparse queue.
+         *
+         * @return position of index in sparseIndices, or -(p + 1) if absent, 
+         *         where p is the position it would be inserted at.
+         */
+        private int findSparseLevel(int index) {
+            int low = 0;
+            int high = numSparseLevels - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                int midIndex = sparseIndices[mid];
+                if(midIndex < index) {
+                    low = mid + 1;
+                } else if(midIndex > index) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+
+        /** Index a new level at position pos of a sparse queue. */
+        private LevelList insertSparseLevel(int pos, int index) {
+            if(sparseLevels == null) {
+                sparseLevels = new LevelList[kInitialSparseLevels];
+                sparseIndices = new int[kInitialSparseLevels];
+            } else if(numSparseLevels == sparseLevels.length) {
+                LevelList[] levels = new LevelList[2 * numSparseLevels];
+                int[] indices = new int[2 * numSparseLevels];
+                System.arraycopy(sparseLevels, 0, levels, 0, numSparseLevels);
+                System.arraycopy(sparseIndices, 0, indices, 0, numSparseLevels);
+                sparseLevels = levels;
+                sparseIndices = indices;
+            }
+            System.arraycopy(sparseLevels, pos, sparseLevels, pos + 1, numSparseLevels - pos);
+            System.arraycopy(sparseIndices, pos, sparseIndices, pos + 1, numSparseLevels - pos);
+            LevelList level = spareLevels;
+            if(level == null) {
+                level = new LevelList();
+            } else {
+                spareLevels = level.nextSpare;
+                level.nextSpare = null;
+            }
+            sparseLevels[pos] = level;
+            sparseIndices[pos] = index;
+            numSparseLevels++;
+            return level;
+        }
+
+
+        /** Unindex the now empty level at index of a sparse queue. */
+        private void removeSparseLevel(int index) {
+            int pos = findSparseLevel(index);
+            Lib.assertTrue(pos >= 0 && sparseLevels[pos].isEmpty());
+            LevelList level = sparseLevels[pos];
+            numSparseLevels--;
+            System.arraycopy(sparseLevels, pos + 1, sparseLevels, pos, numSparseLevels - pos);
+            System.arraycopy(sparseIndices, pos + 1, sparseIndices, pos, numSparseLevels - pos);
+            sparseLevels[numSparseLevels] = null;
+            level.nextSpare = spareLevels;
+            spareLevels = level;
+        }
+
+
+        /**
+         * Return the highest occupied level below index. With 
+         * getNextNonemptyQueue() this walks the occupied levels from the 
+         * top without visiting empty ones:
+         *
+         * <pre>
+         * for(int i = getNextNonemptyQueue(); 
+         *     i != kInvalidQueueIndex; 
+         *     i = nextLevelBelow(i))
+         * </pre>
+         *
+         * @return a level index, or kInvalidQueueIndex if there is none.
+         */
+        protected int nextLevelBelow(int index) {
+            if(sparse) {
+                int pos = findSparseLevel(index);
+                pos = pos >= 0 ? pos - 1 : -pos - 2;
+                return pos < 0 ? kInvalidQueueIndex : sparseIndices[pos];
+            }
+            if(levelBitmap == null || index <= 0) { return kInvalidQueueIndex; }
+            int below = index - 1;
+            int word = below >> kLog2BitsPerWord;
+            long bits = levelBitmap[word] & (-1L >>> (kBitIndexMask - (below & kBitIndexMask)));
+            while(bits == 0) {
+                if(--word < 0) { return kInvalidQueueIndex; }
+                bits = levelBitmap[word];
+            }
+            return 
+                (word << kLog2BitsPerWord) 
+                + kBitIndexMask 
+                - Long.numberOfLeadingZeros(bits);
+        }
+
+
+        /**
+         * Return this drained queue to the state of a new one, apart from 
+         * its identity and any level storage it has grown. 
+         */
+        protected void resetForReuse() {
+            resourceHolder = null;
+            emptyReadyWarning = true;
+            dequeuesSinceVerify = 0;
+            metrics.reset();
+        }
+
+
+        /** Return the scheduler this queue belongs to. */
+        protected PriorityScheduler getScheduler() {
+            return PriorityScheduler.this;
+        }
+
+
+        /** Return true if no level of this queue holds a thread. */
+        protected boolean areAllLevelsEmpty() {
+            if(sparse) { return numSparseLevels == 0; }
+            if(arrayOfQueues == null) { return true; }
+            for(int i = 0; i <= queueMax; i++) {
+                if(arrayOfQueues[i] != null && !arrayOfQueues[i].isEmpty()) { 
+                    return false; 
+                }
+            }
+            return true;
+        }
+
+
+        /**
+         * Map a priority onto the arrayOfQueues index that holds threads of 
+         * that priority. 
+         *
+         * @param   priority    Effective priority of a thread on this queue.
+         * @return index into arrayOfQueues.
+         */
+        protected int getLevelIndex(int priority) {
+            return priority;
+        }
+
+
+        /**
+         * Add a thread's link to the back of the queue for the given priority 
+         * and mark that level as occupied in the level bitmap. 
+         *
+         * All insertions into arrayOfQueues must go through this method (or 
+         * removeFromLevel()) so that the bitmap stays consistent. 
+         *
+         * @param   priority    Priority level to add the thread to.
+         * @param   link        Link of the thread being added to this queue.
+         * @return true if the thread was added, false if the link is already 
+         *              on a level.
+         */
+        protected boolean addToLevel(int priority, ThreadState.QueueLink link) {
+            if(link.level != kInvalidQueueIndex) { return false; }
+            int index = getLevelIndex(priority);
+            obtainLevel(index).add(link);
+            link.level = index;
+            markLevelOccupied(index);
+            return true;
+        }
+
+
+        /**
+         * Unlink a thread's link from whichever level it is on, clearing that 
+         * level in the level bitmap if it is now empty. 
+         *
+         * @param   link    Link of the thread being removed from this queue.
+         * @return true if the link was on a level and has been removed.
+         */
+        protected boolean removeFromLevel(ThreadState.QueueLink link) {
+            int index = link.level;
+            if(index == kInvalidQueueIndex) { return false; }
+            LevelList level = getQueue(index);
+            level.remove(link);
+            link.level = kInvalidQueueIndex;
+            if(level.isEmpty()) { markLevelEmpty(index); }
+            return true;
+        }
+
+
+        /** 
+         * Set the bitmap bit for index and its summary bit. A sparse queue 
+         * indexed the level when it was obtained, so has nothing to do. 
+         */
+        protected void markLevelOccupied(int index) {
+            if(sparse) { return; }
+            int word = index >> kLog2BitsPerWord;
+            levelBitmap[word] |= 1L << (index & kBitIndexMask);
+            levelSummary[word >> kLog2BitsPerWord] |= 1L << (word & kBitIndexMask);
+        }
+
+
+        /** 
+         * Clear the bitmap bit for index, and its summary bit if needed. A 
+         * sparse queue unindexes the level and keeps it for reuse. 
+         */
+        protected void markLevelEmpty(int index) {
+            if(sparse) { 
+                removeSparseLevel(index); 
+                return;
+            }
+            int word = index >> kLog2BitsPerWord;
+            levelBitmap[word] &= ~(1L << (index & kBitIndexMask));
+            if(levelBitmap[word] == 0) {
+                levelSummary[word >> kLog2BitsPerWord] &= 
+                    ~(1L << (word & kBitIndexMask));
+            }
         }
 
 
@@ -203,38 +626,56 @@ public class PriorityScheduler extends Scheduler
          * @param thread that is waiting for the resource served by this queue
          */
         public void waitForAccess(KThread thread) {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            getThreadState(thread).waitForAccess(this);
+            waitForAccess(getThreadState(thread));
+        }
+
+        /**
+         * Enqueue a thread by its scheduling state.
+         *
+         * @param ts state of the thread waiting for this queue's resource
+         */
+        public void waitForAccess(ThreadState ts) {
+            Lib.assertTrue(host.interruptsDisabled());
+            if(trace != null) { 
+                traceEvent(SchedulerTrace.kEventWaitForAccess, ts, this, null, ts.getEffectivePriority()); 
+            }
+            ts.waitForAccess(this);
         }
 
 
 
-        /** Dump contents of this queue. Used for debugging. */
+        /** 
+         * Dump contents of this queue. Used for debugging. Does nothing 
+         * unless the dbgPSched debug flag is set.
+         */
         @Override
         public void print() {
-            String[] arrayOfStrings = new String[getQueueSize()];
-
-            for(int i = 0; i<getQueueSize(); i++) {
-                if(getQueue(i).size() > 0) {
-                    arrayOfStrings[i] = new String();
-                    for(ThreadState ts : getQueue(i)) {
-                        string outMessage = 
-                            "-->"
-                            + ts.thread
-                            + "("
-                            + ts.getPriority()
-                            + "/"
-                            + ts.getEffectivePriority()
-                            + ")"; 
-                        arrayOfStrings[i] += outMessage; 
-                    }
-                } else {
-                    arrayOfStrings[i] = null;
+            if(!Lib.test(dbgPSched)) { return; }
+            String levelStrings = "";
+
+            for(int i = getNextNonemptyQueue(); 
+                i != kInvalidQueueIndex; 
+                i = nextLevelBelow(i)) {
+                String levelString = "\nP" + i;
+                for(ThreadState.QueueLink link = getQueue(i).head; 
+                    link != null; 
+                    link = link.next) {
+                    ThreadState ts = link.getOwner();
+                    String outMessage = 
+                        "-->"
+                        + ts.thread
+                        + "("
+                        + ts.getPriority()
+                        + "/"
+                        + ts.getEffectivePriority()
+                        + ")"; 
+                    levelString += outMessage; 
                 }
+                levelStrings = levelString + levelStrings;
             }
             String dumpString = "\nQueue: " + queueID + ":";
             
-            if(queueID == KThread.getReadyQueueID()) { 
+            if(this == host.getReadyQueue()) { 
                 dumpString += "(READY QUEUE)"; 
             }
             dumpString += "transferPriority? "+transferPriority+" "; 
@@ -245,24 +686,21 @@ public class PriorityScheduler extends Scheduler
                 dumpString += "resourceHolder: NULL"; 
             }
             dumpString += " nextThread: ";
+            ThreadState next = pickNextThread();
             
-            if(pickNextThread() != null) {
+            if(next != null) {
                 dumpString += 
-                    ""+pickNextThread().thread
+                    ""+next.thread
                     + "("
-                    + pickNextThread().getPriority()
+                    + next.getPriority()
                     + "/"
-                    + pickNextThread().getEffectivePriority()
+                    + next.getEffectivePriority()
                     + ")"; 
             } else {
                 dumpString += " the NULL thread";
             }
 
-            for(int i =0; i<getQueueSize(); i++) {
-                if(arrayOfStrings[i] != null) {
-                    dumpString += "\nP" + i + arrayOfStrings[i];
-                }
-            }
+            dumpString += levelStrings;
             Lib.debug(dbgPSched, dumpString);
         }
 
@@ -272,9 +710,21 @@ public class PriorityScheduler extends Scheduler
          * @param thread that is aquiring the resource
          */
         public void acquire(KThread thread) {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            resourceHolder = getThreadState(thread); 
-            getThreadState(thread).acquire(this);
+            acquire(getThreadState(thread));
+        }
+
+        /** 
+         * Acquire the resource served by this queue by scheduling state.
+         *
+         * @param ts state of the thread that is aquiring the resource
+         */
+        public void acquire(ThreadState ts) {
+            Lib.assertTrue(host.interruptsDisabled());
+            if(trace != null) { 
+                traceEvent(SchedulerTrace.kEventAcquire, ts, this, null, ts.getEffectivePriority()); 
+            }
+            resourceHolder = ts; 
+            ts.acquire(this);
         }
 
         /** 
@@ -289,29 +739,35 @@ public class PriorityScheduler extends Scheduler
         protected int revokeAllDonationsMadeFromQueue(ThreadState goodbyeThread {
             if(goodbyeThread == null) { return kStatusError; }
             int numRevoked = 0;
-            HashSet<ThreadState.DonationTracker> dummyTracker = 
-                (HashSet<ThreadState.DonationTracker>)goodbyeThread
-                .donationManagementDB
-                .clone(); 
-
-            for(ThreadState.DonationTracker donor : dummyTracker) {
+            ThreadState.DonationTracker nextDonor;
+
+            // Revoking unlinks only the donation being revoked, so walk the 
+            // list in place remembering the successor before each revoke.
+            for(ThreadState.DonationTracker donor = 
+                    goodbyeThread.donationManagementDB.first(); 
+                donor != null; 
+                donor = nextDonor) {
+                nextDonor = donor.nextReceived;
                 boolean okayToRevoke = true;
 
-                for(PriorityQueue queue : donor.donor.queuesThisThreadIsOn) {
+                for(ThreadState.QueueLink link = donor.getDonor().queuesThisThreadIsOn; 
+                    link != null; 
+                    link = link.nextQueue) {
                     okayToRevoke = 
                         okayToRevoke 
-                        && (queue.resourceHolder != goodbyeThread || queue == this);
+                        && (link.queue.resourceHolder != goodbyeThread 
+                            || link.queue == this);
                 }
                 if(okayToRevoke) {
                     goodbyeThread.revokeDonation(donor);
                     numRevoked++;
-                } else {
-                    string errorString = 
+                } else if(Lib.test(dbgPSched)) {
+                    String errorString = 
                         "Tried to revoke a donation sent to  "
                         + goodbyeThread.thread
                         + " by"
-                        + donor.donor.thread
-                        + " but it's still waiting for it somewhere");
+                        + donor.getDonor().thread
+                        + " but it's still waiting for it somewhere";
                     Lib.debug(dbgPSched, errorString);
                 }
             }
@@ -320,84 +776,220 @@ public class PriorityScheduler extends Scheduler
 
         /** Return the next thread from the queue by priority. */
         public KThread nextThread() {
-            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState ts = nextThreadState();
+            return ts == null ? null : ts.thread;
+        }
+
+        /** 
+         * Remove the next thread from the queue by priority and make it the 
+         * resource holder.
+         *
+         * @return the state of the new resource holder, or null if the queue 
+         *         was empty.
+         */
+        public ThreadState nextThreadState() {
+            Lib.assertTrue(host.interruptsDisabled());
             int i = getNextNonemptyQueue();
-            ThreadState sanityThread = verifyQueueData(checkMode);          
-            String dumpString = "";
-            HashSet<ThreadState.DonationTracker> dummyTracker = 
-                new HashSet<ThreadState.DonationTracker>();
+            ThreadState sanityThread = 
+                isVerificationDue() ? verifyQueueData(checkMode) : pickNextThread();
+            int numOldDonors = 0;
+            if(trace != null) {
+                traceEvent(
+                    SchedulerTrace.kEventNextThread, sanityThread, this, null, 
+                    sanityThread == null ? SchedulerTrace.kNone : sanityThread.getEffectivePriority()
+                );
+            }
 
             if(sanityThread == null) {
-                if(queueID == KThread.getReadyQueueID() && emptyReadyWarning) {
-                    string debugString = 
-                        "**** Warning ***** Ready queue is empty. Old resource "
-                        + "holder is "
-                        + resourceHolder.thread;
-                    Lib.debug(dbgPSched, debugString);
+                if(this == host.getReadyQueue() && emptyReadyWarning) {
+                    if(Lib.test(dbgPSched)) {
+                        String debugString = 
+                            "**** Warning ***** Ready queue is empty. Old resource "
+                            + "holder is "
+                            + (resourceHolder == null ? "NONE" : resourceHolder.thread);
+                        Lib.debug(dbgPSched, debugString);
+                    }
                     emptyReadyWarning = false;
                 }
                 resourceHolder = null;
                 return null;
             }
-            if(resourceHolder != null) { 
-                dummyTracker = 
-                    (HashSet<ThreadState.DonationTracker>)resourceHolder
-                    .donationManagementDB
-                    .clone(); 
-            }
             Lib.assertTrue(i != kInvalidQueueIndex);
-            revokeAllDonationsMadeFromQueue(resourceHolder);                
-            Lib.assertTrue(getQueue(i).remove(pickNextThread()));
+
+            // Every donation is made through a transferPriority queue and is 
+            // revoked when its donor leaves that queue, so a queue that does 
+            // not transfer priority has nothing to revoke or re-offer. This 
+            // keeps the ready queue's dispatch O(1) however many donors the 
+            // outgoing thread holds.
+            if(transferPriority && resourceHolder != null) { 
+                numOldDonors = saveDonors(resourceHolder);
+                revokeAllDonationsMadeFromQueue(resourceHolder);                
+            }
+            ThreadState.QueueLink link = sanityThread.getQueueLink(this);
+            sanityThread.recordWait(host.getTime() - link.enqueueTime);
+            metrics.dequeues++;
+            boolean removed = removeFromLevel(link);
+            Lib.assertTrue(removed);
             sanityThread.deleteQueueFromThreadDB(this);
             ThreadState oldResourceHolder = resourceHolder;
             resourceHolder = sanityThread;
 
             // Formatting the debugging output.
-            dumpString += 
-                "[ nextThread ]: Returning " 
-                + sanityThread.thread
-                + " ("
-                + sanityThread.getPriority()
-                + "/"
-                + sanityThread.getEffectivePriority()
-                + ")" 
-                + " on queue " 
-                + queueID;
-                + (queueID == KThread.getReadyQueueID()) ? " (READY QUEUE) " : "";
-                + ". Old resource holder: ";
-                + (oldResourceHolder == null) ? "" : oldResourceHolder.thread;
-            Lib.debug(dbgPSched, dumpString);
-            print();
-
-            for(ThreadState.DonationTracker oldDonor : dummyTracker) {
-                if(oldDonor.donor.queuesThisThreadIsOn.contains(this)) {
-                    String assertString = 
-                        "ERROR: "
-                        + oldDonor.donor.thread
-                        + " thinks its on "
-                        + queueID
-                        + " but the queue thinks differently";
+            if(Lib.test(dbgPSched)) {
+                String dumpString = 
+                    "[ nextThread ]: Returning " 
+                    + sanityThread.thread
+                    + " ("
+                    + sanityThread.getPriority()
+                    + "/"
+                    + sanityThread.getEffectivePriority()
+                    + ")" 
+                    + " on queue " 
+                    + queueID
+                    + ((this == host.getReadyQueue()) ? " (READY QUEUE) " : "")
+                    + ". Old resource holder: "
+                    + ((oldResourceHolder == null) ? "" : oldResourceHolder.thread);
+                Lib.debug(dbgPSched, dumpString);
+                print();
+            }
+
+            for(int j = 0; j < numOldDonors; j++) {
+                ThreadState oldDonor = donorScratch[j];
+                donorScratch[j] = null;
+                ThreadState.QueueLink donorLink = oldDonor.getQueueLink(this);
+                if(donorLink != null) {
                     boolean assertCondition = 
-                        getQueue(oldDonor.donor.getEffectivePriority())
-                        .contains(oldDonor.donor);
-                    Lib.assertTrue(assertCondition, assertString);
-                    oldDonor.donor.checkIfDonationRequired(this);
+                        donorLink.level 
+                        == getLevelIndex(oldDonor.getEffectivePriority());
+                    if(!assertCondition) {
+                        String assertString = 
+                            "ERROR: "
+                            + oldDonor.thread
+                            + " thinks its on "
+                            + queueID
+                            + " but the queue thinks differently";
+                        Lib.assertTrue(assertCondition, assertString);
+                    }
+                    oldDonor.checkIfDonationRequired(this);
+                }
+            }
+            return sanityThread;
+        }
+
+        /**
+         * Copy the threads that have donated to holder into donorScratch. 
+         *
+         * nextThread() needs the donors of the outgoing resource holder after 
+         * those donations have been revoked. The buffer is kept with the 
+         * queue and only grows, so this does not allocate once it is large 
+         * enough. 
+         *
+         * @param holder    Thread whose donors are saved.
+         * @return the number of donors saved. 
+         */
+        private int saveDonors(ThreadState holder) {
+            int numDonors = holder.donationManagementDB.size();
+            if(donorScratch.length < numDonors) {
+                donorScratch = 
+                    new ThreadState[Math.max(numDonors, 2 * donorScratch.length)];
+            }
+            int j = 0;
+            for(ThreadState.DonationTracker dt = holder.donationManagementDB.first(); 
+                dt != null; 
+                dt = dt.nextReceived) {
+                donorScratch[j++] = dt.getDonor();
+            }
+            return j;
+        }
+
+        /**
+         * Remove a particular waiter from this queue without giving it the 
+         * resource. This migrates a thread between run queues (see 
+         * RunQueueSet), so the queue must not transfer priority: there are 
+         * no donations made through it to revoke.
+         *
+         * @param ts    A thread waiting on this queue.
+         */
+        public void removeWaiter(ThreadState ts) {
+            Lib.assertTrue(host.interruptsDisabled());
+            Lib.assertTrue(!transferPriority);
+            ThreadState.QueueLink link = ts.getQueueLink(this);
+            Lib.assertTrue(link != null);
+            ts.recordWait(host.getTime() - link.enqueueTime);
+            metrics.dequeues++;
+            boolean removed = removeMigratingWaiter(link);
+            Lib.assertTrue(removed);
+            ts.deleteQueueFromThreadDB(this);
+        }
+
+        /**
+         * Take the link of a thread leaving through removeWaiter() off its 
+         * level. The thread is not being given the resource, so a queue that 
+         * charges a thread for being dequeued overrides this to skip the 
+         * charge.
+         *
+         * @return true if the link was on a level of this queue.
+         */
+        protected boolean removeMigratingWaiter(ThreadState.QueueLink link) {
+            return removeFromLevel(link);
+        }
+
+        /**
+         * Return the waiter nextThread() would prefer among those allowed to 
+         * run on cpu: the longest waiting one on the highest level that has 
+         * any. Queues that choose their next thread some other way override 
+         * this to apply the same policy to the eligible waiters.
+         *
+         * @param cpu   CPU number, see ThreadState.setAffinity().
+         * @return an eligible waiter, or null if there is none.
+         */
+        public ThreadState findEligible(int cpu) {
+            for(int i = getNextNonemptyQueue(); 
+                i != kInvalidQueueIndex; 
+                i = nextLevelBelow(i)) {
+                for(ThreadState.QueueLink link = getQueue(i).head; 
+                    link != null; 
+                    link = link.next) {
+                    if(link.getOwner().canRunOn(cpu)) { 
+                        return link.getOwner(); 
+                    }
                 }
             }
-            return sanityThread.thread;
+            return null;
         }
 
         /** 
          * Return the highest-index non-empty queue.
          *
+         * The summary word locates the highest non-zero word of levelBitmap 
+         * and that word locates the level, so this is two leading-zero counts 
+         * for up to 4096 levels (plus one summary word per further 4096).
+         *
+         * A sparse queue's highest occupied level is the last it indexes. 
+         *
          * @return  Index of highest priority non-empty queue or kInvalidQueue 
          *          if no such queue exists.  
          */
         protected int getNextNonemptyQueue() {
-            int i = getQueueSize()-1;
-            for( ; i>0 && getQueue(i).size()==0; i--)
-                ;
-            if(getQueue(i).size() > 0) { return i; }
+            if(sparse) {
+                return 
+                    numSparseLevels == 0 
+                    ? kInvalidQueueIndex 
+                    : sparseIndices[numSparseLevels - 1];
+            }
+            if(levelSummary == null) { return kInvalidQueueIndex; }
+            for(int s = levelSummary.length-1; s >= 0; s--) {
+                if(levelSummary[s] != 0) {
+                    int word = 
+                        (s << kLog2BitsPerWord) 
+                        + kBitIndexMask 
+                        - Long.numberOfLeadingZeros(levelSummary[s]);
+                    return 
+                        (word << kLog2BitsPerWord) 
+                        + kBitIndexMask 
+                        - Long.numberOfLeadingZeros(levelBitmap[word]);
+                }
+            }
             return kInvalidQueueIndex;
         }
 
@@ -408,15 +1000,39 @@ public class PriorityScheduler extends Scheduler
          * @return The next thread that <tt>nextThread()</tt> would return.
          */
         protected ThreadState pickNextThread() {
-            int i = getPriorityMaximum();
-            while(getQueue(i).size() == 0 && i != getPriorityMinimum()) {
-                 i--; 
-            }
+            int i = getNextNonemptyQueue();
+            if(i == kInvalidQueueIndex) { return null; }
             return getQueue(i).peek(); 
         }
        
-        /** True if donation is enabled, otherwise false */ 
-        public boolean transferPriority;
+        /** True if donation is enabled, otherwise false. Fixed at creation. */
+        public final boolean transferPriority;
+
+        /** Bit i is set iff arrayOfQueues[i] is non-empty. */
+        protected long[] levelBitmap;
+
+        /** Bit w is set iff levelBitmap[w] is non-zero. */
+        protected long[] levelSummary;
+
+        /** Highest level index this queue supports */
+        protected final int queueMax;
+
+        /** True if only occupied levels are kept, in sparseLevels */
+        protected final boolean sparse;
+
+        /** Occupied levels of a sparse queue, by increasing index */
+        private LevelList[] sparseLevels;
+        private int[] sparseIndices;
+        private int numSparseLevels = 0;
+
+        /** Emptied levels of a sparse queue, linked through nextSpare */
+        private LevelList spareLevels;
+
+        /** Next queue in the scheduler's pool of recycled queues */
+        private PriorityQueue nextPooled;
+
+        /** True while this queue is in the pool */
+        private boolean pooled = false;
 
         /** Displays warning when priority queue becomes empty if true */
         protected boolean emptyReadyWarning = true;
@@ -424,12 +1040,37 @@ public class PriorityScheduler extends Scheduler
         /** Holder of blocking resource */
         protected ThreadState resourceHolder;
 
+        /** Reusable buffer of the outgoing holder's donors for nextThread() */
+        private ThreadState[] donorScratch = new ThreadState[kInitialDonorScratchSize];
+
         /** Indicate type of queue (lottery or priority). */
         protected int checkMode;
 
+        /** Dequeues from this queue since verifyQueueData() last ran */
+        private int dequeuesSinceVerify = 0;
+
+        /** Event counters for this queue */
+        protected final QueueMetrics metrics = new QueueMetrics();
+
+        /** Return the event counters for this queue. */
+        public QueueMetrics getMetrics() {
+            return metrics;
+        }
+
+        /** 
+         * Return the number of threads waiting at the level that priority 
+         * maps to. A lottery queue has a single level holding every waiter.
+         */
+        public int getLevelDepth(int priority) {
+            return getQueue(getLevelIndex(priority)).size();
+        }
+
         /** Identifier for each queue. */
         protected final int queueID = hashCode()%10000;
 
+        /** Unique number identifying this queue in a SchedulerTrace */
+        protected final int traceID = nextQueueTraceID++;
+
 
         /** 
          * Consistency checks for when a queue is empty
@@ -442,18 +1083,18 @@ public class PriorityScheduler extends Scheduler
             boolean areAllQueuesEmpty = true;
             boolean cond1 = sanityThread == null;
             boolean cond2 = getNextNonemptyQueue() == kInvalidQueueIndex;
-            boolean cond3 = areAllQueuesEmpty;
 
-            for(int i=getQueueSize()-1; i != kInvalidQueueIndex; i--) {
-                areAllQueuesEmpty = areAllQueuesEmpty && getQueue(i).size() == 0;
-            }
+            areAllQueuesEmpty = areAllLevelsEmpty();
+            boolean cond3 = areAllQueuesEmpty;
             if(cond1 || cond2 || cond3) {
                 Lib.assertTrue(getNextNonemptyQueue() == kInvalidQueueIndex);
                 Lib.assertTrue(sanityThread == null);
                 Lib.assertTrue(areAllQueuesEmpty);
  
                 if(resourceHolder != null) {
-                    for(ThreadState.DonationTracker dt : resourceHolder.donationManagementDB) {
+                    for(ThreadState.DonationTracker dt = resourceHolder.donationManagementDB.first(); 
+                        dt != null; 
+                        dt = dt.nextReceived) {
                         Lib.assertTrue(dt.queueDonorCameFrom != this);
                     }
                 }
@@ -551,28 +1192,50 @@ public class PriorityScheduler extends Scheduler
             
             // Make sure no donation happens when donations are disabled. 
             if(!transferPriority) { 
-                for(ThreadState.DonationTracker dt : sanityThread.donationManagementDB) {
+                for(ThreadState.DonationTracker dt = sanityThread.donationManagementDB.first(); 
+                    dt != null; 
+                    dt = dt.nextReceived) {
                     Lib.assertTrue(dt.queueDonorCameFrom != this, firstFail);
                 }
             }
 
             // Ensure every thread this thread has a donation from knows about 
             // it and check transferPriority consistency for them
-            for(ThreadState.DonationTracker dt : sanityThread.donationManagementDB) {
-                Lib.assertTrue(dt.donor.threadsDonatedTo.contains(sanityThread), secondFail);
+            for(ThreadState.DonationTracker dt = sanityThread.donationManagementDB.first(); 
+                dt != null; 
+                dt = dt.nextReceived) {
+                Lib.assertTrue(dt.getDonor().getDonationTo(sanityThread) == dt, secondFail);
                 Lib.assertTrue(dt.queueDonorCameFrom.transferPriority, thirdFail);
             }
 
             // Ensure all donations match getEffectivePriority() for this thread
-            for(ThreadState ts : sanityThread.threadsDonatedTo) {
-                for(ThreadState.DonationTracker dt : ts.donationManagementDB) {
-                    if(dt.donor == sanityThread) {
-                        Lib.assertTrue(dt.donation == sanityThread.getEffectivePriority());
-                    }
-                }
+            for(ThreadState.DonationTracker dt = sanityThread.donationsMade; 
+                dt != null; 
+                dt = dt.nextMade) {
+                Lib.assertTrue(dt.receiver.donationManagementDB.contains(dt));
+                Lib.assertTrue(dt.donation == sanityThread.getDonationOffer());
             }
         }
 
+        /**
+         * Decide whether this dequeue runs verifyQueueData().
+         *
+         * Under kVerifyFull every dequeue is checked and under kVerifyOff 
+         * none are. Under kVerifySampled each queue checks one dequeue in 
+         * every verificationPeriod, which costs a counter increment 
+         * otherwise. 
+         *
+         * @return true if nextThread() should verify this dequeue.
+         * @see setVerificationTier
+         */
+        protected boolean isVerificationDue() {
+            if(verificationTier == kVerifyFull) { return true; }
+            if(verificationTier == kVerifyOff) { return false; }
+            if(++dequeuesSinceVerify < verificationPeriod) { return false; }
+            dequeuesSinceVerify = 0;
+            return true;
+        }
+
         /** 
          * Data consistency checks for threads on their way out of the queue.
          *
@@ -606,6 +1269,303 @@ public class PriorityScheduler extends Scheduler
     } // End of PriorityQueue class
 
 
+    /**
+     * One priority level of a PriorityQueue. 
+     *
+     * An intrusive FIFO threaded through the prev/next fields of 
+     * ThreadState.QueueLink, so appending at the tail and unlinking any 
+     * waiter are constant time and never search the level. 
+     */
+    protected static class LevelList
+    {
+        /** Longest waiting thread on this level */
+        protected ThreadState.QueueLink head;
+
+        /** Most recently added thread on this level */
+        protected ThreadState.QueueLink tail;
+
+        /** Number of links on this level */
+        protected int size;
+
+        /** Next emptied level kept by a sparse queue */
+        protected LevelList nextSpare;
+
+        /** Append link to the tail of this level. */
+        protected void add(ThreadState.QueueLink link) {
+            link.prev = tail;
+            link.next = null;
+            if(tail == null) { 
+                head = link; 
+            } else {
+                tail.next = link;
+            }
+            tail = link;
+            size++;
+        }
+
+        /** Unlink link, which must currently be on this level. */
+        protected void remove(ThreadState.QueueLink link) {
+            if(link.prev == null) { 
+                head = link.next; 
+            } else {
+                link.prev.next = link.next;
+            }
+            if(link.next == null) { 
+                tail = link.prev; 
+            } else {
+                link.next.prev = link.prev;
+            }
+            link.prev = null;
+            link.next = null;
+            size--;
+        }
+
+        /** 
+         * Move every link of other to the tail of this level, keeping their 
+         * order, in constant time. The links' level fields are not touched. 
+         */
+        protected void appendAll(LevelList other) {
+            if(other.head == null) { return; }
+            if(tail == null) { 
+                head = other.head; 
+            } else {
+                tail.next = other.head;
+                other.head.prev = tail;
+            }
+            tail = other.tail;
+            size += other.size;
+            other.head = null;
+            other.tail = null;
+            other.size = 0;
+        }
+
+        /** Return the longest waiting thread on this level, or null. */
+        protected ThreadState peek() {
+            return head == null ? null : head.getOwner();
+        }
+
+        protected int size() { 
+            return size; 
+        }
+
+        protected boolean isEmpty() { 
+            return size == 0; 
+        }
+    } // End of LevelList class
+
+
+    /**
+     * The donations received by a thread.
+     *
+     * An intrusive list threaded through the prevReceived/nextReceived 
+     * fields of ThreadState.DonationTracker, so adding and revoking a 
+     * donation are constant time and allocate nothing. Iterate with 
+     * first() and DonationTracker.nextReceived. 
+     */
+    protected static class DonationList
+    {
+        /** Most recently received donation */
+        protected ThreadState.DonationTracker head;
+
+        /** Number of donations in the list */
+        protected int size;
+
+        /** Add a donation that is not on any list. */
+        protected void add(ThreadState.DonationTracker dt) {
+            dt.prevReceived = null;
+            dt.nextReceived = head;
+            if(head != null) { 
+                head.prevReceived = dt; 
+            }
+            head = dt;
+            size++;
+        }
+
+        /** Unlink a donation, which must currently be on this list. */
+        protected void remove(ThreadState.DonationTracker dt) {
+            if(dt.prevReceived == null) { 
+                head = dt.nextReceived; 
+            } else {
+                dt.prevReceived.nextReceived = dt.nextReceived;
+            }
+            if(dt.nextReceived != null) { 
+                dt.nextReceived.prevReceived = dt.prevReceived; 
+            }
+            dt.prevReceived = null;
+            dt.nextReceived = null;
+            size--;
+        }
+
+        /** Return true if dt is on this list. Linear, for checks only. */
+        protected boolean contains(ThreadState.DonationTracker dt) {
+            for(ThreadState.DonationTracker d = head; d != null; d = d.nextReceived) {
+                if(d == dt) { return true; }
+            }
+            return false;
+        }
+
+        /** Return the first donation, or null if there are none. */
+        protected ThreadState.DonationTracker first() {
+            return head;
+        }
+
+        protected int size() {
+            return size;
+        }
+
+        protected boolean isEmpty() {
+            return size == 0;
+        }
+    } // End of DonationList class
+
+
+    /**
+     * Event counters for one PriorityQueue. 
+     *
+     * Plain primitive fields bumped in place, so they are cheap enough to 
+     * leave on permanently. Depth per level is not counted here since the 
+     * LevelLists already know it; see PriorityQueue.getLevelDepth().
+     */
+    public static class QueueMetrics
+    {
+        /** Number of waitForAccess() calls on the queue */
+        protected long enqueues;
+
+        /** Number of threads removed by nextThread() */
+        protected long dequeues;
+
+        /** Number of donations made or revised through the queue */
+        protected long donations;
+
+        /** Number of donations made through the queue that were revoked */
+        protected long revocations;
+
+        /** Deepest chain of donations that reached the queue */
+        protected int maxPropagationDepth;
+
+        public long getEnqueues() { return enqueues; }
+
+        public long getDequeues() { return dequeues; }
+
+        public long getDonations() { return donations; }
+
+        public long getRevocations() { return revocations; }
+
+        public int getMaxPropagationDepth() { return maxPropagationDepth; }
+
+        /** Zero all counters. */
+        public void reset() {
+            enqueues = 0;
+            dequeues = 0;
+            donations = 0;
+            revocations = 0;
+            maxPropagationDepth = 0;
+        }
+    } // End of QueueMetrics class
+
+
+    /** 
+     * Return the wait time histogram bucket for a wait of ticks: 0 for no 
+     * wait, otherwise one more than the index of the highest set bit. 
+     */
+    public static int getWaitBucket(long ticks) {
+        return ticks <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(ticks);
+    }
+
+
+    /**
+     * Indexed binary max-heap of the donations received by a thread, ordered 
+     * by donation. 
+     *
+     * Each DonationTracker records its own position in heapIndex, so a 
+     * donation can be revised or removed in O(log n) without searching for 
+     * it and the best donation is always at the root. The backing array is 
+     * allocated on the first donation since most threads never receive one.
+     */
+    protected static class DonationHeap
+    {
+        /** Heap-ordered donations; heap[0] is the largest */
+        protected ThreadState.DonationTracker[] heap;
+
+        /** Number of donations in the heap */
+        protected int size;
+
+        /** Return the largest donation, or null if there are none. */
+        protected ThreadState.DonationTracker peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        protected int size() { 
+            return size; 
+        }
+
+        /** Insert a donation that is not already in a heap. */
+        protected void add(ThreadState.DonationTracker dt) {
+            Lib.assertTrue(dt.heapIndex == kNotInHeap);
+            if(heap == null) {
+                heap = new ThreadState.DonationTracker[kInitialDonationHeapSize];
+            } else if(size == heap.length) {
+                ThreadState.DonationTracker[] newHeap = 
+                    new ThreadState.DonationTracker[size * 2];
+                System.arraycopy(heap, 0, newHeap, 0, size);
+                heap = newHeap;
+            }
+            heap[size] = dt;
+            dt.heapIndex = size;
+            size++;
+            siftUp(dt.heapIndex);
+        }
+
+        /** Remove a donation currently in this heap. */
+        protected void remove(ThreadState.DonationTracker dt) {
+            int index = dt.heapIndex;
+            Lib.assertTrue(index >= 0 && index < size && heap[index] == dt);
+            size--;
+            ThreadState.DonationTracker last = heap[size];
+            heap[size] = null;
+            dt.heapIndex = kNotInHeap;
+            if(index != size) {
+                heap[index] = last;
+                last.heapIndex = index;
+                siftDown(siftUp(index));
+            }
+        }
+
+        /** Move the entry at index towards the root; return where it ends. */
+        private int siftUp(int index) {
+            ThreadState.DonationTracker dt = heap[index];
+            while(index > 0) {
+                int parent = (index - 1) >> 1;
+                if(heap[parent].donation >= dt.donation) { break; }
+                heap[index] = heap[parent];
+                heap[index].heapIndex = index;
+                index = parent;
+            }
+            heap[index] = dt;
+            dt.heapIndex = index;
+            return index;
+        }
+
+        /** Move the entry at index towards the leaves. */
+        private void siftDown(int index) {
+            ThreadState.DonationTracker dt = heap[index];
+            while(true) {
+                int child = 2 * index + 1;
+                if(child >= size) { break; }
+                if(child + 1 < size && heap[child + 1].donation > heap[child].donation) {
+                    child++;
+                }
+                if(dt.donation >= heap[child].donation) { break; }
+                heap[index] = heap[child];
+                heap[index].heapIndex = index;
+                index = child;
+            }
+            heap[index] = dt;
+            dt.heapIndex = index;
+        }
+    } // End of DonationHeap class
+
+
     /**
      * The scheduling state of a thread. 
      *
@@ -623,41 +1583,70 @@ public class PriorityScheduler extends Scheduler
          * Maintains an association of threads that have donated
          * priority and which queues the donee owned when the donation was made
          * 
-         * Equality Symantics: object1.equals(object2) iff object1.donor == 
-         * object2.donor
-         * hashCode Symantics (used in HashSet for membership testing): 
-         * object1.hashCode() == object2.hashCode() iff object1.donor.hashCode() 
-         * == object2.donor.hashCode(). 
+         * A donor has at most one donation outstanding to each receiver. The 
+         * tracker sits on two intrusive lists at once: the receiver's 
+         * donationManagementDB (prevReceived/nextReceived) and the donor's 
+         * donationsMade (nextMade). Trackers belong to the donor and are 
+         * recycled through its spareDonations list once revoked. 
          */
         protected class DonationTracker
         {
-            ThreadState donor;
+            ThreadState receiver;
             PriorityQueue queueDonorCameFrom;
-            int donation;
+            long donation;
+
+            /** Position of this donation in the receiver's donationHeap */
+            int heapIndex = kNotInHeap;
+
+            /** Neighbours on the receiver's donationManagementDB */
+            DonationTracker prevReceived;
+            DonationTracker nextReceived;
+
+            /** Next on the donor's donationsMade or spareDonations */
+            DonationTracker nextMade;
+
+            /** Return the ThreadState offering this donation. */
+            ThreadState getDonor() { 
+                return ThreadState.this; 
+            }
+        } // End of DonationTracker class
+
+
+        /**
+         * QueueLink inner class.
+         *
+         * Intrusive node recording that this thread is waiting on a 
+         * particular PriorityQueue. prev/next chain the node into the 
+         * LevelList of that queue at the level this thread currently sits on, 
+         * so moving the thread to another level after a donation is an 
+         * unlink and an append rather than a search of the level. nextQueue 
+         * chains all of this thread's links together (queuesThisThreadIsOn).
+         */
+        protected class QueueLink
+        {
+            PriorityQueue queue;
+            int level = kInvalidQueueIndex;
+            QueueLink prev;
+            QueueLink next;
+            QueueLink nextQueue;
+
+            /** Host time at which the thread started waiting on queue */
+            long enqueueTime;
 
             /**
-             * Constructor for DonationTracker.
+             * Constructor for QueueLink.
              *
-             * @param inOffer offer from the donor thread.
-             * @param inDonor ThreadState offering donation.
-             * @param inQueue the queue the donor is waiting on.
+             * @param inQueue the queue this thread is waiting on.
              */
-            DonationTracker(int inOffer, ThreadState inDonor, PriorityQueue inQueue) {
-                donor = inDonor;
-                queueDonorCameFrom = inQueue;
-                donation = inOffer;
+            QueueLink(PriorityQueue inQueue) {
+                queue = inQueue;
             }
 
-            @Override
-            public int hashCode() { 
-                return donor.hashCode(); 
+            /** Return the ThreadState waiting on queue. */
+            ThreadState getOwner() { 
+                return ThreadState.this; 
             }
-
-            @Override
-            public boolean equals(Object inObject) { 
-                return donor == ((DonationTracker)inObject).donor; 
-            }
-        } // End of DonationTracker class
+        } // End of QueueLink class
 
 
         /** 
@@ -685,8 +1674,7 @@ public class PriorityScheduler extends Scheduler
             if(currentBestDonor != null) {
                 outValue = 
                     outValue 
-                    && donationManagementDB
-                    .contains(new DonationTracker(0,currentBestDonor, null));
+                    && currentBestDonor.getDonationTo(this) != null;
             }
             if(!outValue) {
                 System.out.println(firstFail);
@@ -706,25 +1694,24 @@ public class PriorityScheduler extends Scheduler
             // Ensure all outstanding priority donations are to threads we're 
             // still waiting for resources from and that the donation matches 
             // getEffectivePriority() for this thread.
-            for(ThreadState ts : threadsDonatedTo) {
-                for(PriorityQueue queue : queuesThisThreadIsOn) {
-                    subValue = subValue || (queue.resourceHolder == ts);
+            for(DonationTracker dt = donationsMade; dt != null; dt = dt.nextMade) {
+                for(QueueLink link = queuesThisThreadIsOn; 
+                    link != null; 
+                    link = link.nextQueue) {
+                    PriorityQueue queue = link.queue;
+                    subValue = subValue || (queue.resourceHolder == dt.receiver);
                
-                    // Find the donation we made and make sure it matches the 
-                    // current effective priority of this thread.
-                    if(queue.resourceHolder == ts) {
-                        for(DonationTracker dt : ts.donationManagementDB) {
-                            if(dt.donor == this) {
-                                subValue = subValue && dt.donation == getEffectivePriority();
-                            }
-                        }
+                    // Make sure the donation we made matches the current 
+                    // effective priority of this thread.
+                    if(queue.resourceHolder == dt.receiver) {
+                        subValue = subValue && dt.donation == getDonationOffer();
                     }
                 }
             }
-            if(threadsDonatedTo.size() > 0) {
+            if(donationsMade != null) {
                 outValue = outValue && subValue;
             }
-            if(!outValue && threadsDonatedTo.size() > 0) {
+            if(!outValue && donationsMade != null) {
                 System.out.println(thirdFail);
                 threadDump();
             }
@@ -739,9 +1726,11 @@ public class PriorityScheduler extends Scheduler
          */
         public ThreadState(KThread thread) {
             this.thread = thread;
-            donationManagementDB = new HashSet<DonationTracker>();
-            threadsDonatedTo = new HashSet<ThreadState>();
-            queuesThisThreadIsOn = new HashSet<PriorityQueue>();
+            donationManagementDB = kNoDonationList;
+            donationHeap = kNoDonationHeap;
+            donationsMade = null;
+            spareDonations = null;
+            queuesThisThreadIsOn = null;
             currentBestOffer = kInvalidEP;
             currentBestDonor = null;
             setPriority(priorityDefault);
@@ -752,19 +1741,22 @@ public class PriorityScheduler extends Scheduler
          * (visible with -p debug flag) 
          */ 
         public void threadDump() {
+            if(!Lib.test(dbgPSched)) { return; }
             String outString = "";
             String outString2 = "";
             String donatedString = "";
             int i = 0; 
-            for(DonationTracker td : donationManagementDB) {
+            for(DonationTracker td = donationManagementDB.first(); 
+                td != null; 
+                td = td.nextReceived) {
                 i++;
                 outString += 
                     "\n\t"
                     + i 
                     + ") Donor: " 
-                    + td.donor.thread 
+                    + td.getDonor().thread 
                     + "(EP: "
-                    + td.donor.getEffectivePriority()
+                    + td.getDonor().getEffectivePriority()
                     + ")"
                     + ", Donation: " 
                     + td.donation 
@@ -775,10 +1767,13 @@ public class PriorityScheduler extends Scheduler
                 outString += "NONE"; 
             }
             i = 0; 
-            for(PriorityQueue queue : queuesThisThreadIsOn) {
+            for(QueueLink link = queuesThisThreadIsOn; 
+                link != null; 
+                link = link.nextQueue) {
+                PriorityQueue queue = link.queue;
                 i++;
                 outString2 += "" + i + ") QueueID: " + queue.queueID; 
-                if(queue.queueID == KThread.getReadyQueueID()) { 
+                if(queue == host.getReadyQueue()) { 
                     outString2 += " (READY QUEUE) ";
                 }
                 if(queue != null)  {
@@ -797,9 +1792,9 @@ public class PriorityScheduler extends Scheduler
                 outString2 += "NONE"; 
             }
             i=0;
-            for(ThreadState ts : threadsDonatedTo) {
+            for(DonationTracker dt = donationsMade; dt != null; dt = dt.nextMade) {
                 i++;
-                donatedString += i + ") " + ts.thread + ". ";
+                donatedString += i + ") " + dt.receiver.thread + ". ";
             }
             if(i==0) { 
                 donatedString += "NONE"; 
@@ -816,12 +1811,12 @@ public class PriorityScheduler extends Scheduler
                 + outString
                 + "\nqueuesThisThreadIsOn: "
                 + outString2
-                + "\nthreadsDonatedTo: "
+                + "\ndonationsMade: "
                 + donatedString;
             Lib.debug(dbgPSched, debugString); 
             debugString = "Best offer: " + currentBestOffer + ". Best donor: ";
             if(currentBestDonor != null) { 
-                dumpString += 
+                debugString += 
                     currentBestDonor.thread
                     + "("
                     + currentBestDonor.getPriority()
@@ -853,11 +1848,117 @@ public class PriorityScheduler extends Scheduler
          */
         public void revokeDonation(DonationTracker donor) {
             String event = "revoke";
-            Lib.assertTrue(donationManagementDB.remove(donor));
-            Lib.assertTrue(donor.donor.threadsDonatedTo.remove(this));
+            Lib.assertTrue(donor.receiver == this);
+            if(trace != null) {
+                traceEvent(
+                    SchedulerTrace.kEventRevokeDonation, this, 
+                    donor.queueDonorCameFrom, donor.getDonor(), donor.donation
+                );
+            }
+            donor.queueDonorCameFrom.metrics.revocations++;
+            donationManagementDB.remove(donor);
+            boolean unlinked = donor.getDonor().unlinkDonationMade(donor);
+            Lib.assertTrue(unlinked);
+            donationChanged(donor, null);
 
             if(priorityUpdateRequired(donor, event))
                 calculatePriorityDonation();
+            donor.getDonor().releaseDonationTracker(donor);
+        }
+
+
+
+        /**
+         * Return the donation this thread has outstanding to receiver.
+         *
+         * A thread waits on few queues at once, so donationsMade is short. 
+         *
+         * @param receiver  Thread that may hold a donation from this thread.
+         * @return the donation, or null if there is none.
+         */
+        protected DonationTracker getDonationTo(ThreadState receiver) {
+            for(DonationTracker dt = donationsMade; dt != null; dt = dt.nextMade) {
+                if(dt.receiver == receiver) { return dt; }
+            }
+            return null;
+        }
+
+
+
+        /**
+         * Remove dt from donationsMade.
+         *
+         * @return false if dt was not on donationsMade.
+         */
+        private boolean unlinkDonationMade(DonationTracker dt) {
+            DonationTracker prev = null;
+            for(DonationTracker d = donationsMade; d != null; d = d.nextMade) {
+                if(d == dt) {
+                    if(prev == null) { 
+                        donationsMade = d.nextMade; 
+                    } else {
+                        prev.nextMade = d.nextMade;
+                    }
+                    dt.nextMade = null;
+                    return true;
+                }
+                prev = d;
+            }
+            return false;
+        }
+
+
+
+        /** 
+         * Return an unused DonationTracker for a donation from this thread, 
+         * reusing a revoked one when available.
+         */
+        protected DonationTracker obtainDonationTracker() {
+            DonationTracker dt = spareDonations;
+            if(dt == null) { 
+                return new DonationTracker(); 
+            }
+            spareDonations = dt.nextMade;
+            dt.nextMade = null;
+            return dt;
+        }
+
+
+
+        /** Return a DonationTracker that is on no list to spareDonations. */
+        protected void releaseDonationTracker(DonationTracker dt) {
+            Lib.assertTrue(dt.getDonor() == this && dt.heapIndex == kNotInHeap);
+            dt.receiver = null;
+            dt.queueDonorCameFrom = null;
+            dt.donation = 0;
+            dt.nextMade = spareDonations;
+            spareDonations = dt;
+        }
+
+
+
+        /**
+         * Notification that the set of donations to this thread changed. 
+         *
+         * Called after a donation is added (oldDonation null) or revoked 
+         * (newDonation null) and before any recalculation of effective 
+         * priority. A tracker is revised in place, so a revision is reported 
+         * as a revocation of the old amount followed by an addition of the 
+         * new one. Here it keeps donationHeap ordered. Schedulers that cache 
+         * a different function of the donations override this to keep their 
+         * own cache current instead. 
+         *
+         * @param oldDonation   Donation revoked, or null.
+         * @param newDonation   Donation now in effect, or null.
+         */
+        protected void donationChanged(DonationTracker oldDonation, DonationTracker newDonation) {
+            if(oldDonation != null) { 
+                donationHeap.remove(oldDonation); 
+            }
+            if(newDonation != null) { 
+                if(donationHeap == kNoDonationHeap) { donationHeap = new DonationHeap(); }
+                donationHeap.add(newDonation); 
+            }
         }
 
 
@@ -873,22 +1974,33 @@ public class PriorityScheduler extends Scheduler
          */
         protected boolean priorityUpdateRequired(DonationTracker donor, String event) {
             if(event == "revoke") { 
-                return donor.donor == currentBestDonor; 
+                return donor.getDonor() == currentBestDonor; 
             }
             if(event == "receive") {
                 return (
                     donor.donation > currentBestOffer 
-                    || (donor.donor.equals(currentBestDonor) 
+                    || (donor.getDonor().equals(currentBestDonor) 
                     && donor.donation < currentBestOffer)
                 );
             }
-            if(event == "set") {
-                return (donor.donation != getEffectivePriority());
-            }
             return false;
         } 
 
 
+        /**
+         * Return true if a change of this thread's own priority must be 
+         * propagated, that is, if its effective priority has changed. 
+         *
+         * @param   oldEffectivePriority    Effective priority before the 
+         *                                  change.
+         * @return true if this thread must be moved on its queues and its 
+         *         donations resent.
+         */
+        protected boolean priorityChangeRequiresUpdate(int oldEffectivePriority) {
+            return oldEffectivePriority != getEffectivePriority();
+        }
+
+
 
         /**
          * Return the effective priority of the associated thread.
@@ -899,6 +2011,20 @@ public class PriorityScheduler extends Scheduler
             return Math.max(priority, currentBestOffer); 
         }
 
+        /**
+         * Return the donation this thread offers to the holder of any 
+         * transferPriority queue it is waiting on. 
+         *
+         * For priority donation this is simply the effective priority. 
+         * Schedulers whose donations can exceed the int range of an effective 
+         * priority override this to return the exact amount. 
+         *
+         * @return the donation this thread currently offers.
+         */
+        protected long getDonationOffer() {
+            return getEffectivePriority();
+        }
+
         /**
          * Set the priority of the associated thread to the specified value.
          *
@@ -910,21 +2036,24 @@ public class PriorityScheduler extends Scheduler
          * @param priority the new priority.
          */
         public void setPriority(int inPriority) {
-            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(host.interruptsDisabled());
             boolean cond1 = inPriority >= getPriorityMinimum(); 
             boolean cond2 = inPriority <= getPriorityMaximum();
-            String fail = "ERROR in setPriority, "+inPriority + " out of range";
-            Lib.assertTrue(cond1 && cond2, fail);
+            if(!(cond1 && cond2)) {
+                Lib.assertTrue(false, "ERROR in setPriority, "+inPriority + " out of range");
+            }
             if (this.priority == inPriority) { return; }
-            int currentPriority = getPriority();
+            if(trace != null) { 
+                traceEvent(SchedulerTrace.kEventSetPriority, this, null, null, inPriority); 
+            }
             int currentEP = getEffectivePriority();
-            String event = "set";
-            DonationTracker dt = new DonationTracker(currentEP, this, null);
             priority = inPriority;
            
-            if(priorityUpdateRequired(dt, event)) {
-                for(PriorityQueue queue : queuesThisThreadIsOn) {
-                    moveThreadOnQueue(queue, currentEP, getEffectivePriority());
+            if(priorityChangeRequiresUpdate(currentEP)) {
+                for(QueueLink link = queuesThisThreadIsOn; 
+                    link != null; 
+                    link = link.nextQueue) {
+                    moveThreadOnQueue(link.queue, currentEP, getEffectivePriority());
                 }
                 propagatePriorityDonation();
             }
@@ -940,9 +2069,10 @@ public class PriorityScheduler extends Scheduler
          * @param to    Queue this thread is being moved to.
          */
         protected void moveThreadOnQueue(PriorityQueue queue, int from, int to) {
-            Lib.assertTrue(queue.getQueue(from).remove(this));
-            Lib.assertTrue(!queue.getQueue(to).remove(this));
-            queue.getQueue(to).add(this);
+            QueueLink link = getQueueLink(queue);
+            Lib.assertTrue(link != null && link.level == queue.getLevelIndex(from));
+            queue.removeFromLevel(link);
+            queue.addToLevel(to, link);
         }
 
 
@@ -955,26 +2085,118 @@ public class PriorityScheduler extends Scheduler
          * If the donated priority doesn't change this threads effective 
          * priority, just add the donation to the database of donations 
          * received. If it does, then update effective priority via 
-         * calculatePriorityDonation()
+         * calculatePriorityDonation(). A repeat offer from the same donor 
+         * revises its existing DonationTracker in place.
          *
          * @param offer     Offer of priority being made to this thread.
          * @param donor     Thread offering the donation.
          * @param waitQueue Queue that donor is waiting for resources on and that 
          *                  this thread is the resourceHolder of.
          */
-        protected void receiveOffer(int offer, ThreadState donor, PriorityQueue waitQueue) {
-            Lib.assertTrue(Machine.interrupt().disabled());
+        protected void receiveOffer(long offer, ThreadState donor, PriorityQueue waitQueue) {
+            Lib.assertTrue(host.interruptsDisabled());
             Lib.assertTrue(waitQueue.transferPriority); 
             String event = "receive";
-            DonationTracker donationObject = new DonationTracker(offer, donor, waitQueue);
-            
-            if(donationManagementDB.contains(donationObject)) {
-                donationManagementDB.remove(donationObject);
+            if(trace != null) { 
+                traceEvent(SchedulerTrace.kEventReceiveOffer, this, waitQueue, donor, offer); 
+            }
+            DonationTracker donationObject = donor.getDonationTo(this);
+            if(donationObject == null) {
+                donationObject = donor.obtainDonationTracker();
+                donationObject.receiver = this;
+                donationObject.nextMade = donor.donationsMade;
+                donor.donationsMade = donationObject;
+                if(donationManagementDB == kNoDonationList) { 
+                    donationManagementDB = new DonationList(); 
+                }
+                donationManagementDB.add(donationObject);
+            } else {
+                donationChanged(donationObject, null);
             }
-            donationManagementDB.add(donationObject);
+            donationObject.queueDonorCameFrom = waitQueue;
+            donationObject.donation = offer;
+            donationChanged(null, donationObject);
+            beginDonation(waitQueue);
             if(priorityUpdateRequired(donationObject, event)) {
                 calculatePriorityDonation();
             }
+            endDonation();
+        }
+
+
+
+        /**
+         * Count a donation made on queue and note how deep in a chain of 
+         * donations it sits. Must be paired with endDonation().
+         */
+        protected void beginDonation(PriorityQueue queue) {
+            int depth = 
+                threadDepth == null ? ++propagationDepth : ++threadDepth.get()[0];
+            queue.metrics.donations++;
+            if(depth > queue.metrics.maxPropagationDepth) {
+                queue.metrics.maxPropagationDepth = depth;
+            }
+        }
+
+        /** Leave the donation entered by the matching beginDonation(). */
+        protected void endDonation() {
+            if(threadDepth == null) {
+                propagationDepth--;
+            } else {
+                threadDepth.get()[0]--;
+            }
+        }
+
+
+
+        /**
+         * Restrict this thread to the CPUs whose bits are set in mask, for 
+         * a RunQueueSet. Bit n stands for CPU n.
+         *
+         * @param mask  Non-zero CPU mask; kAllCPUs for no restriction.
+         */
+        public void setAffinity(long mask) {
+            Lib.assertTrue(mask != 0);
+            cpuAffinity = mask;
+        }
+
+        /** Return true if this thread's affinity allows it on cpu. */
+        public boolean canRunOn(int cpu) {
+            return ((cpuAffinity >>> cpu) & 1) != 0;
+        }
+
+        /** Return the CPU this thread last ran on, or kNoCPU. */
+        public int getLastCPU() {
+            return lastCPU;
+        }
+
+        /**
+         * Record that this thread waited ticks on a queue before being 
+         * dequeued. Bucket b of the histogram counts waits w with 
+         * 2^(b-1) <= w < 2^b, and bucket 0 counts waits of zero ticks.
+         */
+        protected void recordWait(long ticks) {
+            if(waitHistogram == null) {
+                waitHistogram = new long[kWaitHistogramBuckets];
+            }
+            waitHistogram[getWaitBucket(ticks)]++;
+            totalWaitTicks += ticks;
+            numWaits++;
+        }
+
+        /** Return the number of waits recorded in histogram bucket. */
+        public long getWaitCount(int bucket) {
+            return waitHistogram == null ? 0 : waitHistogram[bucket];
+        }
+
+        /** Return the number of waits recorded for this thread. */
+        public long getNumWaits() {
+            return numWaits;
+        }
+
+        /** Return the total ticks this thread has spent waiting. */
+        public long getTotalWaitTicks() {
+            return totalWaitTicks;
         }
  
  
@@ -982,54 +2204,59 @@ public class PriorityScheduler extends Scheduler
          * Compute effective priority of this thread.
          *
          * This method will take the maximum value of this.priority and all 
-         * priority donations received from other threads but asking all of 
-         * those threads what their effective priorities are. This value is  
-         * stored as currentBestOffer for the highest donor currentBestDonor. 
-         * This caching is aimed at preventing needless (and time-consuming) 
-         * recomputation. If, as a result of this computation, this thread's 
+         * priority donations received from other threads. The largest 
+         * donation is the top of donationHeap, which donationChanged() keeps 
+         * ordered as donations arrive, change and are revoked, so this is a 
+         * constant time lookup rather than a scan of donationManagementDB. 
+         * It is stored as currentBestOffer for the highest donor 
+         * currentBestDonor. If, as a result of this computation, this thread's 
          * effective priority changes, this method calls 
          * propagatePriorityDonation() to notify all threads this thread has 
          * donated priority to in the past that its effective priority has 
          * changed. 
          */
         protected void calculatePriorityDonation() {
-            Lib.debug(dbgPSched, "Calculating priority donation for " + thread);
-            Lib.assertTrue(Machine.interrupt().disabled());
+            if(Lib.test(dbgPSched)) {
+                Lib.debug(dbgPSched, "Calculating priority donation for " + thread);
+            }
+            Lib.assertTrue(host.interruptsDisabled());
            
             // First invalidate currentBestOffer 
             int oldEffectivePriority = getEffectivePriority(); 
-            int bestOfferSeenSoFar = kInvalidEP;
-            ThreadState bestDonorSeenSoFar = null;            
+            DonationTracker bestDonation = donationHeap.peek();
         
-            // Find the best donor out of all donors in donationManagementDB 
-            for(ThreadState.DonationTracker ts : donationManagementDB) {   
-
+            if(bestDonation == null) {
+                currentBestOffer = kInvalidEP;
+                currentBestDonor = null;
+            } else {
                 // Data consistency check. Donor thread better know it's still 
                 // a donor thread
-                if(!ts.donor.threadsDonatedTo.contains(this)) {
+                if(bestDonation.getDonor().getDonationTo(this) != bestDonation) {
                     System.out.println(
                         "ERROR: Donor/donnee data inconsistent: Donor: "
                         + ". Enable debug output (-p) to see threadDump()s" 
                     );
-                    ts.donor.threadDump();
+                    bestDonation.getDonor().threadDump();
                     threadDump();
                     Lib.assertTrue(false);
                 }                
-                if(bestOfferSeenSoFar < ts.donation) {
-                    bestOfferSeenSoFar = ts.donation;
-                    bestDonorSeenSoFar = ts.donor; 
-                }
+                currentBestOffer = (int)bestDonation.donation;
+                currentBestDonor = bestDonation.getDonor();
             }
-            currentBestOffer = bestOfferSeenSoFar;
-            currentBestDonor = bestDonorSeenSoFar;
 
             // If the thread's effective priority has changed, move the thread 
             // on all queues it's sitting on.
             if(oldEffectivePriority != getEffectivePriority()) {
-                for(PriorityQueue queue : queuesThisThreadIsOn) {
-                    Lib.assertTrue(queue.getQueue(oldEffectivePriority).contains(this), "ERROR");
-                    queue.getQueue(oldEffectivePriority).remove(this);
-                    queue.getQueue(getEffectivePriority()).add(this);
+                for(QueueLink link = queuesThisThreadIsOn; 
+                    link != null; 
+                    link = link.nextQueue) {
+                    PriorityQueue queue = link.queue;
+                    Lib.assertTrue(
+                        link.level == queue.getLevelIndex(oldEffectivePriority), 
+                        "ERROR"
+                    );
+                    queue.removeFromLevel(link);
+                    queue.addToLevel(getEffectivePriority(), link);
                 }
                 
                 // Finally, tell everyone else about the change. 
@@ -1039,6 +2266,64 @@ public class PriorityScheduler extends Scheduler
        
        
         
+        /**
+         * Find this thread's link for a queue it is waiting on.
+         *
+         * Threads wait on very few queues at once, so this walks 
+         * queuesThisThreadIsOn rather than keeping a separate index.
+         *
+         * @param waitQueue Queue to look for.
+         * @return the QueueLink for waitQueue, or null if this thread is not 
+         *              waiting on it.
+         */
+        protected QueueLink getQueueLink(PriorityQueue waitQueue) {
+            QueueLink link = queuesThisThreadIsOn;
+            while(link != null && link.queue != waitQueue) {
+                link = link.nextQueue;
+            }
+            return link;
+        }
+
+
+
+        /**
+         * Allocate a new QueueLink for waitQueue. Subclasses whose queues 
+         * keep extra per-waiter state override this to return a subclass 
+         * of QueueLink holding it, so that only their waiters pay for it.
+         */
+        protected QueueLink createQueueLink(PriorityQueue waitQueue) {
+            return new QueueLink(waitQueue);
+        }
+
+
+
+        /** 
+         * Return an unused QueueLink for waitQueue, reusing one released by 
+         * deleteQueueFromThreadDB() when available.
+         */
+        protected QueueLink obtainQueueLink(PriorityQueue waitQueue) {
+            QueueLink link = spareQueueLinks;
+            if(link == null) { 
+                return createQueueLink(waitQueue); 
+            }
+            spareQueueLinks = link.nextQueue;
+            link.nextQueue = null;
+            link.queue = waitQueue;
+            return link;
+        }
+
+
+
+        /** Return a QueueLink that is on no queue to spareQueueLinks. */
+        private void releaseQueueLink(QueueLink link) {
+            Lib.assertTrue(link.level == kInvalidQueueIndex);
+            link.queue = null;
+            link.nextQueue = spareQueueLinks;
+            spareQueueLinks = link;
+        }
+
+
+
         /**
          * Remove waitQueue from this thread's queuesThisThreadIsOn database. 
          *
@@ -1049,7 +2334,21 @@ public class PriorityScheduler extends Scheduler
          *                  queuesThisThreadIsOn database
          */
         protected void deleteQueueFromThreadDB(ThreadQueue waitQueue) {
-            if(!queuesThisThreadIsOn.remove(waitQueue)) {
+            QueueLink previous = null;
+            QueueLink link = queuesThisThreadIsOn;
+            while(link != null && link.queue != waitQueue) {
+                previous = link;
+                link = link.nextQueue;
+            }
+            if(link != null) {
+                if(previous == null) {
+                    queuesThisThreadIsOn = link.nextQueue;
+                } else {
+                    previous.nextQueue = link.nextQueue;
+                }
+                link.nextQueue = null;
+                releaseQueueLink(link);
+            } else {
                 String failString = 
                     "ERROR: Tried to remove " 
                     + ((PriorityQueue)waitQueue).queueID
@@ -1073,13 +2372,14 @@ public class PriorityScheduler extends Scheduler
          * a new value that changes its effective priority. 
          */
         protected void propagatePriorityDonation() {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            for(PriorityQueue queue : queuesThisThreadIsOn) {
-                for(ThreadState ts : threadsDonatedTo) {
-                    Lib.assertTrue(ts != null, "ERROR");
-                    if(queue.transferPriority && queue.resourceHolder == ts) {
-                        ts.receiveOffer(getEffectivePriority(), this, queue);
-                    }
+            Lib.assertTrue(host.interruptsDisabled());
+            for(QueueLink link = queuesThisThreadIsOn; 
+                link != null; 
+                link = link.nextQueue) {
+                PriorityQueue queue = link.queue;
+                ThreadState ts = queue.resourceHolder;
+                if(queue.transferPriority && ts != null && getDonationTo(ts) != null) {
+                    ts.receiveOffer(getDonationOffer(), this, queue);
                 }
             }
         }
@@ -1097,41 +2397,51 @@ public class PriorityScheduler extends Scheduler
          * @see nachos.threads.ThreadQueue#waitForAccess
          */
         public void waitForAccess(PriorityQueue waitQueue) {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            String dumpString = 
-                "[ waitForAccess ]: " 
-                + thread 
-                + "("
-                + getPriority()
-                +"/"
-                + getEffectivePriority()
-                + ") waiting on " 
-                + waitQueue.queueID
-                + ". Resource holder: ";
-                + (waitQueue.resourceHolder == null 
-                    ? " null " 
-                    : waitQueue.resourceHolder.thread);
-
-            if(waitQueue.queueID == KThread.getReadyQueueID()) { 
-                dumpString += " (READY QUEUE) "; 
+            Lib.assertTrue(host.interruptsDisabled());
+            if(Lib.test(dbgPSched)) {
+                String dumpString = 
+                    "[ waitForAccess ]: " 
+                    + thread 
+                    + "("
+                    + getPriority()
+                    +"/"
+                    + getEffectivePriority()
+                    + ") waiting on " 
+                    + waitQueue.queueID
+                    + ". Resource holder: "
+                    + (waitQueue.resourceHolder == null 
+                        ? " null " 
+                        : waitQueue.resourceHolder.thread);
+
+                if(waitQueue == host.getReadyQueue()) { 
+                    dumpString += " (READY QUEUE) "; 
+                }
+                Lib.debug(dbgPSched, dumpString);
             }
-            Lib.debug(dbgPSched, dumpString);
             
             // waitQueue should not already contain this thread, so assert
-            Lib.assertTrue(
-                !queuesThisThreadIsOn.contains(waitQueue), 
-                "ERROR: tried to waitForAccess on a queue"
-                +"("
-                + waitQueue.queueID
-                + ") that this thread ("
-                + thread
-                + ") is already on"
-            );
-            queuesThisThreadIsOn.add(waitQueue);
-            checkIfDonationRequired(waitQueue);        
+            if(getQueueLink(waitQueue) != null) {
+                Lib.assertTrue(
+                    false, 
+                    "ERROR: tried to waitForAccess on a queue"
+                    +"("
+                    + waitQueue.queueID
+                    + ") that this thread ("
+                    + thread
+                    + ") is already on"
+                );
+            }
+            QueueLink link = obtainQueueLink(waitQueue);
+            link.enqueueTime = host.getTime();
+            link.nextQueue = queuesThisThreadIsOn;
+            queuesThisThreadIsOn = link;
+            waitQueue.metrics.enqueues++;
+            if(waitQueue.transferPriority) { 
+                checkIfDonationRequired(waitQueue);        
+            }
 
             // Add this thread to the waitQueue at (effective) priorit 
-            if(!waitQueue.getQueue(getEffectivePriority()).add(this)) {
+            if(!waitQueue.addToLevel(getEffectivePriority(), link)) {
                 Lib.debug(dbgPSched, "ERROR: Thread already on queue");
                 waitQueue.print();
                 threadDump();
@@ -1148,25 +2458,26 @@ public class PriorityScheduler extends Scheduler
          * @param waitQueue Priority queue thread is initiating a donation from. 
          */
         private void checkIfDonationRequired(PriorityQueue waitQueue){
-            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(host.interruptsDisabled());
             boolean cond1 = waitQueue.resourceHolder != null;
             boolean cond2 = waitQueue.resourceHolder != this;
             boolean cond3 = waitQueue.transferPriority;
-            String debugString = 
-                "[ ThreadState.waitForAccess ]: " 
-                + thread 
-                + " sending donation to " 
-                + waitQueue.resourceHolder.thread 
-                + " of " 
-                + getEffectivePriority() 
-                + " on queue " 
-                + waitQueue.queueID;
 
             if(cond1 && cond2 && cond3) {
-                Lib.debug(dbgPSched, debugString);
-                threadsDonatedTo.add(waitQueue.resourceHolder);
+                if(Lib.test(dbgPSched)) {
+                    String debugString = 
+                        "[ ThreadState.waitForAccess ]: " 
+                        + thread 
+                        + " sending donation to " 
+                        + waitQueue.resourceHolder.thread 
+                        + " of " 
+                        + getEffectivePriority() 
+                        + " on queue " 
+                        + waitQueue.queueID;
+                    Lib.debug(dbgPSched, debugString);
+                }
                 waitQueue.resourceHolder.receiveOffer(
-                    getEffectivePriority(), this , waitQueue
+                    getDonationOffer(), this , waitQueue
                 );
             }
         }
@@ -1182,35 +2493,245 @@ public class PriorityScheduler extends Scheduler
          * @see        nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            for(int i=0; i< waitQueue.getQueueSize(); i++) {
-                Lib.assertTrue(waitQueue.getQueue(i).size() == 0);
-            }
+            Lib.assertTrue(host.interruptsDisabled());
+            Lib.assertTrue(waitQueue.getNextNonemptyQueue() == kInvalidQueueIndex);
         }        
 
 
         /** Thread encapsulated by this ThreadState */
         protected KThread thread;
 
+        /** Unique number identifying this thread in a SchedulerTrace */
+        protected final int traceID = nextThreadTraceID++;
+
         /** Thread's inherent priority */
         protected int priority;
 
-        /** Database of donations to this thread */
-        protected HashSet<DonationTracker> donationManagementDB;
+        /** 
+         * Database of donations to this thread. The shared, empty 
+         * kNoDonationList until the first donation arrives. 
+         */
+        protected DonationList donationManagementDB;
+
+        /** 
+         * The donations in donationManagementDB ordered largest first. The 
+         * shared, empty kNoDonationHeap until the first donation arrives. 
+         */
+        protected DonationHeap donationHeap;
+
+        /** 
+         * Database of which queues this thread is waiting on. Head of a chain 
+         * of QueueLinks linked through nextQueue. 
+         */
+        protected QueueLink queuesThisThreadIsOn;
 
-        /** Database of which queues this thread is waiting on */
-        protected HashSet<PriorityQueue> queuesThisThreadIsOn;
+        /** Released QueueLinks kept for reuse, linked through nextQueue */
+        protected QueueLink spareQueueLinks;
+
+        /** 
+         * Database of donations this thread has outstanding. Head of a chain 
+         * of DonationTrackers linked through nextMade. 
+         */
+        protected DonationTracker donationsMade;
 
-        /** Database of which threads this thread has donated to */
-        protected HashSet<ThreadState> threadsDonatedTo;
+        /** Revoked DonationTrackers kept for reuse, linked through nextMade */
+        protected DonationTracker spareDonations;
 
         /** Best offer of priority received so far */
         protected int currentBestOffer;
 
         /** Thread that has made the current best offer */
         protected ThreadState currentBestDonor;
+
+        /** CPUs this thread may run on, one bit per CPU */
+        protected long cpuAffinity = kAllCPUs;
+
+        /** CPU this thread last ran on, or kNoCPU */
+        protected int lastCPU = kNoCPU;
+
+        /** Log2 histogram of wait times; allocated on the first wait */
+        protected long[] waitHistogram;
+
+        /** Number of waits and total ticks waited, for the mean */
+        protected long numWaits;
+        protected long totalWaitTicks;
     } // End of ThreadState class
 
+    /**
+     * Select how much consistency checking nextThread() does on the queues 
+     * of this scheduler. Other schedulers are not affected.
+     *
+     * kVerifyFull runs verifyQueueData() on every dequeue. Its checks walk 
+     * donors, queues and donations, so they cost far more than the dequeue 
+     * itself. kVerifySampled runs them on one dequeue in every period on 
+     * each queue, and kVerifyOff never runs them. A new scheduler starts 
+     * at kVerifySampled with kDefaultVerificationPeriod.
+     *
+     * @param tier      kVerifyOff, kVerifySampled or kVerifyFull.
+     * @param period    Dequeues per check under kVerifySampled.
+     */
+    public void setVerificationTier(int tier, int period) {
+        Lib.assertTrue(tier >= kVerifyOff && tier <= kVerifyFull);
+        Lib.assertTrue(period > 0);
+        verificationTier = tier;
+        verificationPeriod = period;
+    }
+
+    /** Return this scheduler's verification tier. */
+    public int getVerificationTier() {
+        return verificationTier;
+    }
+
+    /** Return this scheduler's dequeues per check under kVerifySampled. */
+    public int getVerificationPeriod() {
+        return verificationPeriod;
+    }
+
+    /**
+     * Count the depth of donation chains separately for each Java thread.
+     * For a scheduler whose queues several Java threads operate on at once,
+     * see ConcurrentScheduler.
+     */
+    void countDepthPerThread() {
+        threadDepth = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+    }
+
+    /**
+     * The services the scheduling engine needs from its environment. 
+     *
+     * The engine asserts that the interrupt guard is held on entry to every 
+     * operation, labels the ready queue in debug output, and reads the clock 
+     * for timing. Nothing else ties it to the Nachos machine.
+     */
+    public interface Host 
+    {
+        /** Return true if the scheduler's interrupt guard is held. */
+        boolean interruptsDisabled();
+
+        /** Take the interrupt guard and return whether it was already held. */
+        boolean disableInterrupts();
+
+        /** Restore the interrupt guard to a state from disableInterrupts(). */
+        void restoreInterrupts(boolean status);
+
+        /** Return the current time in ticks. */
+        long getTime();
+
+        /** Return the ready queue, or null if there is none. */
+        ThreadQueue getReadyQueue();
+    }
+
+    /** Host backed by the simulated machine and KThread. */
+    public static class NachosHost implements Host
+    {
+        public boolean interruptsDisabled() { 
+            return Machine.interrupt().disabled(); 
+        }
+
+        public boolean disableInterrupts() { 
+            return Machine.interrupt().disable(); 
+        }
+
+        public void restoreInterrupts(boolean status) { 
+            Machine.interrupt().restore(status); 
+        }
+
+        public long getTime() { 
+            return Machine.timer().getTime(); 
+        }
+
+        public ThreadQueue getReadyQueue() { 
+            return KThread.getReadyQueue(); 
+        }
+    } // End of NachosHost class
+
+    /**
+     * Host for running the engine outside Nachos. 
+     *
+     * The interrupt guard is a flag, so callers still bracket operations with 
+     * disableInterrupts()/restoreInterrupts() as they would under Nachos, 
+     * and a HeadlessHost must only be used from one thread at a time. The 
+     * clock is virtual and only moves through advanceTime(). There is no 
+     * ready queue unless one is named with setReadyQueue().
+     */
+    public static class HeadlessHost implements Host
+    {
+        public boolean interruptsDisabled() { 
+            return disabled; 
+        }
+
+        public boolean disableInterrupts() { 
+            boolean oldStatus = disabled;
+            disabled = true;
+            return oldStatus; 
+        }
+
+        public void restoreInterrupts(boolean status) { 
+            disabled = status; 
+        }
+
+        public long getTime() { 
+            return time; 
+        }
+
+        /** Move the virtual clock forward by ticks. */
+        public void advanceTime(long ticks) {
+            Lib.assertTrue(ticks >= 0);
+            time += ticks;
+        }
+
+        public ThreadQueue getReadyQueue() { 
+            return readyQueue; 
+        }
+
+        /** Treat queue as the ready queue, or have none if it is null. */
+        public void setReadyQueue(ThreadQueue queue) {
+            readyQueue = queue;
+        }
+
+        private boolean disabled = false;
+        private long time = 0;
+        private ThreadQueue readyQueue = null;
+    } // End of HeadlessHost class
+
+    /** Environment this scheduler runs in */
+    protected final Host host;
+
+    /** Number of receiveOffer() calls currently on the stack */
+    private int propagationDepth = 0;
+
+    /** 
+     * propagationDepth kept per Java thread instead, or null. Set by 
+     * countDepthPerThread(). 
+     */
+    private ThreadLocal<int[]> threadDepth = null;
+
+    /** Where events are recorded, or null when tracing is off */
+    protected SchedulerTrace trace = null;
+
+    /** Recycled queues for newThreadQueue(), linked through nextPooled */
+    private PriorityQueue pooledDonatingQueues = null;
+    private PriorityQueue pooledPlainQueues = null;
+    private int numPooledQueues = 0;
+
+    /** Most queues to pool; 0 turns pooling off */
+    private int queuePoolSize = 0;
+
+    /** Consistency checking done by nextThread(). See setVerificationTier() */
+    private int verificationTier = kVerifySampled;
+
+    /** Under kVerifySampled, dequeues per queue between checks */
+    private int verificationPeriod = kDefaultVerificationPeriod;
+
+    /** Next traceID to hand out to a ThreadState and a PriorityQueue */
+    private int nextThreadTraceID = 0;
+    private int nextQueueTraceID = 0;
+
     /** Disable or enable assert functionality */
     private static boolean isAssertEnabled = false; 
 
@@ -1220,6 +2741,46 @@ public class PriorityScheduler extends Scheduler
     /** Invalid queue index */
     protected static final int kInvalidQueueIndex = -1;
 
+    /** Number of buckets in a ThreadState wait time histogram. */
+    public static final int kWaitHistogramBuckets = Long.SIZE + 1;
+
+    /** ThreadState affinity allowing every CPU. */
+    public static final long kAllCPUs = -1L;
+
+    /** ThreadState.getLastCPU() of a thread that has not run on any CPU. */
+    public static final int kNoCPU = -1;
+
+    /** DonationTracker is not in a DonationHeap. */
+    protected static final int kNotInHeap = -1;
+
+    /** 
+     * Empty donation list and heap shared by every thread that has not 
+     * received a donation. Never modified. 
+     */
+    protected static final DonationList kNoDonationList = new DonationList();
+    protected static final DonationHeap kNoDonationHeap = new DonationHeap();
+
+    /** Capacity of a DonationHeap when its first donation arrives. */
+    protected static final int kInitialDonationHeapSize = 4;
+
+    /** Queues with more levels than this keep only their occupied ones. */
+    protected static final int kMaxDenseLevels = 256;
+
+    /** Capacity of a sparse queue's level index when first used. */
+    protected static final int kInitialSparseLevels = 4;
+
+    /** Level returned by PriorityQueue.getQueue() for one not yet created. */
+    protected static final LevelList kEmptyLevel = new LevelList();
+
+    /** Initial capacity of PriorityQueue.donorScratch. */
+    protected static final int kInitialDonorScratchSize = 4;
+
+    /** log2 of the number of bits in a level bitmap word. */
+    protected static final int kLog2BitsPerWord = 6;
+
+    /** Mask selecting a bit position within a level bitmap word. */
+    protected static final int kBitIndexMask = (1 << kLog2BitsPerWord) - 1;
+
     /** Error condition. */
     protected static final int kStatusError = -2;
 
@@ -1229,6 +2790,18 @@ public class PriorityScheduler extends Scheduler
     /** Indicates that the current queue is a lottery queue. */
     protected static final int kCheckModeLottery = 2;
 
+    /** Verification tier: never run verifyQueueData(). */
+    protected static final int kVerifyOff = 0;
+
+    /** Verification tier: run verifyQueueData() on a sample of dequeues. */
+    protected static final int kVerifySampled = 1;
+
+    /** Verification tier: run verifyQueueData() on every dequeue. */
+    protected static final int kVerifyFull = 2;
+
+    /** Default number of dequeues per check under kVerifySampled. */
+    protected static final int kDefaultVerificationPeriod = 64;
+
     /** Debug constant for Nachos debugger. */
     protected static final char dbgPSched = 'q'; 
 
@@ -1266,8 +2839,22 @@ public class PriorityScheduler extends Scheduler
             }
         }
 
+        /**
+         * Print message if flag is enabled. The message is already built by 
+         * the time this is called, so callers on hot paths should construct 
+         * it inside an if(Lib.test(flag)) block instead.
+         */
         protected static void debug(char flag, String message) { 
             nachos.machine.Lib.debug(flag, message); 
         }
+
+        /** 
+         * Return true if debug output for flag is enabled. Guard any debug 
+         * message that needs concatenation with this so disabled tracing 
+         * costs a single branch.
+         */
+        protected static boolean test(char flag) { 
+            return nachos.machine.Lib.test(flag); 
+        }
     } // End Lib class
 } // End PriorityScheduler class
@@ -15,6 +15,12 @@
 package nachos.threads;
 import nachos.threads.*;
 import nachos.machine.*;
+import java.lang.management.ManagementFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
  
 public class PrioritySchedulerTest 
 {
@@ -943,6 +949,1133 @@ public class PrioritySchedulerTest
         return EXIT_SUCCESS;
     }
 
+    // Check that donation bookkeeping allocates nothing in the steady state. 
+    // A donor waiting on a held lock has its priority changed (moving it on 
+    // the queue and revising its donation in place) and its donation revoked 
+    // and remade, then the lock is handed back and forth with nextThread() 
+    // and waitForAccess(), over and over. Verification is switched off since 
+    // its failure messages are built eagerly. Once the DonationTracker and 
+    // QueueLink pools have warmed up, none of this should allocate. 
+    public static boolean test9()
+    {
+        Lib.debug(dbgTesting, "[ TEST9 ]: Entered TEST9");
+        com.sun.management.ThreadMXBean bean = 
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if(!bean.isThreadAllocatedMemorySupported()) {
+            System.out.println("[ TEST9 ]: Allocation counting unsupported, skipping");
+            return EXIT_SUCCESS;
+        }
+        PriorityScheduler scheduler = (PriorityScheduler)ThreadedKernel.scheduler;
+        KThread holder = new KThread(new Program_4(1));
+        KThread donor = new KThread(new Program_4(1));
+        holder.setName("holder");
+        donor.setName("donor");
+
+        int oldTier = scheduler.getVerificationTier();
+        int oldPeriod = scheduler.getVerificationPeriod();
+        scheduler.setVerificationTier(PriorityScheduler.kVerifyOff, 1);
+        boolean st = Machine.interrupt().disable();
+        PriorityScheduler.PriorityQueue queue = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState holderState = scheduler.getThreadState(holder);
+        PriorityScheduler.ThreadState donorState = scheduler.getThreadState(donor);
+        queue.acquire(holder);
+        queue.waitForAccess(donor);
+
+        long threadID = Thread.currentThread().getId();
+        long before = 0;
+        for(int i = 0; i < allocationWarmup + allocationOps; i++) {
+            if(i == allocationWarmup) { 
+                before = bean.getThreadAllocatedBytes(threadID); 
+            }
+            scheduler.setPriority(donor, (i % 2 == 0) ? 6 : 2);
+            holderState.revokeDonation(donorState.getDonationTo(holderState));
+            holderState.receiveOffer(donorState.getDonationOffer(), donorState, queue);
+            Lib.assertTrue(queue.nextThread() == donor);
+            queue.waitForAccess(holder);
+            Lib.assertTrue(queue.nextThread() == holder);
+            queue.waitForAccess(donor);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadID) - before;
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 2);
+        Lib.assertTrue(queue.nextThread() == donor);
+        Machine.interrupt().restore(st);
+        scheduler.setVerificationTier(oldTier, oldPeriod);
+
+        if(allocated < allocationOps) {
+            return EXIT_SUCCESS;
+        }
+        System.out.println("[ TEST9 ]: ERROR: Failed test9. " + allocated + " bytes allocated over " + allocationOps + " operations");
+        return EXIT_FAILURE;
+    }
+
+    // Run the scheduling engine headless: thread states on a HeadlessHost, 
+    // with no KThreads and no machine involved. A low priority holder of a 
+    // lock should inherit the priority of the best waiter and lose it again 
+    // once the lock is handed on. 
+    public static boolean test10()
+    {
+        Lib.debug(dbgTesting, "[ TEST10 ]: Entered TEST10");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.ThreadState low = scheduler.newThreadState();
+        PriorityScheduler.ThreadState mid = scheduler.newThreadState();
+        PriorityScheduler.ThreadState high = scheduler.newThreadState();
+        low.setPriority(1);
+        mid.setPriority(4);
+        high.setPriority(7);
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+
+        lock.acquire(low);
+        lock.waitForAccess(mid);
+        lock.waitForAccess(high);
+        boolean donated = low.getEffectivePriority() == 7;
+        boolean highFirst = lock.nextThreadState() == high;
+        boolean revoked = low.getEffectivePriority() == 1;
+        boolean midNext = lock.nextThreadState() == mid;
+        boolean empty = lock.nextThreadState() == null;
+        host.restoreInterrupts(st);
+
+        if(donated && highFirst && revoked && midNext && empty)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST10 ]: ERROR: Failed test10. donated " + donated + " highFirst " + highFirst + " revoked " + revoked + " midNext " + midNext + " empty " + empty);
+        return EXIT_FAILURE;
+    }
+
+    // Check the metrics kept by a headless scheduler. Two threads donate 
+    // through a lock held by a third, one of them through a second lock 
+    // first, and the lock is then handed out while the virtual clock moves. 
+    public static boolean test11()
+    {
+        Lib.debug(dbgTesting, "[ TEST11 ]: Entered TEST11");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        PriorityScheduler.ThreadState chained = scheduler.newThreadState();
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.PriorityQueue lock2 = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+
+        lock.acquire(holder);
+        lock.waitForAccess(waiter);
+        lock2.acquire(waiter);
+        lock2.waitForAccess(chained);
+        chained.setPriority(5);
+        boolean depthOk = 
+            lock.getLevelDepth(5) == 1 
+            && lock.getMetrics().getMaxPropagationDepth() == 2;
+        host.advanceTime(100);
+        boolean dequeued = lock.nextThreadState() == waiter;
+        host.restoreInterrupts(st);
+
+        PriorityScheduler.QueueMetrics metrics = lock.getMetrics();
+        boolean countsOk = 
+            metrics.getEnqueues() == 1 
+            && metrics.getDequeues() == 1 
+            && metrics.getDonations() == 2
+            && metrics.getRevocations() == 1
+            && lock.getLevelDepth(5) == 0;
+        boolean waitOk = 
+            waiter.getNumWaits() == 1
+            && waiter.getTotalWaitTicks() == 100
+            && waiter.getWaitCount(PriorityScheduler.getWaitBucket(100)) == 1;
+
+        if(depthOk && dequeued && countsOk && waitOk)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST11 ]: ERROR: Failed test11. depthOk " + depthOk + " dequeued " + dequeued + " countsOk " + countsOk + " waitOk " + waitOk);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Trace a donation and its revocation to a trace file, then reopen it and
+     * check the records. A capacity of 4 leaves only the last 4 of the 5 
+     * events in the ring.
+     */
+    public static boolean test12()
+    {
+        Lib.debug(dbgTesting, "[ TEST12 ]: Entered TEST12");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean recordsOk = false;
+        boolean wrapOk = false;
+
+        try {
+            File file = File.createTempFile("psched", ".trace");
+            file.deleteOnExit();
+            SchedulerTrace trace = new SchedulerTrace(file.getPath(), 4);
+            boolean st = host.disableInterrupts();
+            PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+            PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+            waiter.setPriority(6);
+            PriorityScheduler.PriorityQueue lock = 
+                (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+
+            scheduler.setTrace(trace);
+            lock.acquire(holder);
+            lock.waitForAccess(waiter);
+            host.advanceTime(10);
+            lock.nextThreadState();
+            scheduler.setTrace(null);
+            host.restoreInterrupts(st);
+            trace.close();
+
+            SchedulerTrace in = SchedulerTrace.open(file.getPath());
+            wrapOk = in.getNumRecords() == 5 && in.getOldestRecord() == 1;
+            recordsOk = 
+                in.getEvent(1) == SchedulerTrace.kEventWaitForAccess
+                && in.getThreadID(1) == waiter.traceID
+                && in.getFlags(1) == SchedulerTrace.kFlagTransferPriority
+                && in.getEvent(2) == SchedulerTrace.kEventReceiveOffer
+                && in.getThreadID(2) == holder.traceID
+                && in.getOtherID(2) == waiter.traceID
+                && in.getValue(2) == 6
+                && in.getEvent(3) == SchedulerTrace.kEventNextThread
+                && in.getThreadID(3) == waiter.traceID
+                && in.getTime(3) == 10
+                && in.getEvent(4) == SchedulerTrace.kEventRevokeDonation
+                && in.getQueueID(4) == lock.traceID;
+            in.close();
+        } catch(IOException e) {
+            System.out.println("[ TEST12 ]: ERROR: " + e);
+        }
+
+        if(recordsOk && wrapOk)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST12 ]: ERROR: Failed test12. recordsOk " + recordsOk + " wrapOk " + wrapOk);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Record a random workload on a traced headless PriorityScheduler and 
+     * replay it into a fresh one. Every nextThread() must choose the thread 
+     * it chose when recorded.
+     */
+    public static boolean test13()
+    {
+        Lib.debug(dbgTesting, "[ TEST13 ]: Entered TEST13");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        boolean matched = false;
+        long decisions = 0;
+
+        try {
+            String fileName = recordWorkload(new PriorityScheduler(host), host, replayOps);
+            SchedulerTrace trace = SchedulerTrace.open(fileName);
+            PriorityScheduler.HeadlessHost replayHost = new PriorityScheduler.HeadlessHost();
+            SchedulerReplay replay = new SchedulerReplay(
+                trace, new PriorityScheduler(replayHost), replayHost, 0
+            );
+            matched = replay.run();
+            decisions = replay.getNumDecisions();
+            trace.close();
+        } catch(IOException e) {
+            System.out.println("[ TEST13 ]: ERROR: " + e);
+        }
+
+        if(matched && decisions > 0)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST13 ]: ERROR: Failed test13. matched " + matched + " decisions " + decisions);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Drive scheduler through numOps random waitForAccess(), nextThread() and 
+     * setPriority() calls on one transferPriority queue and two plain ones, 
+     * tracing to a temporary file. Only one queue transfers priority, so no 
+     * donation cycle can form.
+     *
+     * @param scheduler Fresh headless scheduler to drive.
+     * @param host      The HeadlessHost scheduler was constructed with.
+     * @param numOps    Number of random operations.
+     * @return the name of the trace file.
+     */
+    static String recordWorkload(
+        PriorityScheduler scheduler, 
+        PriorityScheduler.HeadlessHost host, 
+        int numOps) throws IOException {
+        File file = File.createTempFile("psched", ".trace");
+        file.deleteOnExit();
+        SchedulerTrace trace = new SchedulerTrace(file.getPath(), numOps * 8);
+        Random random = new Random(1);
+        int minimum = scheduler.getPriorityMinimum();
+        int range = Math.min(scheduler.getPriorityMaximum() - minimum + 1, 10);
+        scheduler.setTrace(trace);
+        boolean st = host.disableInterrupts();
+
+        PriorityScheduler.ThreadState[] threads = new PriorityScheduler.ThreadState[8];
+        int[] waitingOn = new int[threads.length];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = scheduler.newThreadState();
+            waitingOn[i] = -1;
+        }
+        PriorityScheduler.PriorityQueue[] queues = {
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true),
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false),
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false)
+        };
+
+        for(int i = 0; i < numOps; i++) {
+            host.advanceTime(random.nextInt(10));
+            int t = random.nextInt(threads.length);
+            int q = random.nextInt(queues.length);
+            switch(random.nextInt(3)) {
+                case 0:
+                    if(waitingOn[t] == -1) {
+                        queues[q].waitForAccess(threads[t]);
+                        waitingOn[t] = q;
+                    }
+                    break;
+                case 1:
+                    PriorityScheduler.ThreadState next = queues[q].nextThreadState();
+                    for(int j = 0; j < threads.length; j++) {
+                        if(threads[j] == next) { waitingOn[j] = -1; }
+                    }
+                    break;
+                default:
+                    threads[t].setPriority(minimum + random.nextInt(range));
+            }
+        }
+        host.restoreInterrupts(st);
+        scheduler.setTrace(null);
+        trace.close();
+        return file.getPath();
+    }
+
+    /**
+     * Two CPUs with RunQueueSet. A donation to a thread on CPU 0's run queue 
+     * makes it the first thing an idle CPU 1 steals, a thread pinned to 
+     * CPU 0 is never stolen, and a thread goes back to the CPU it last ran 
+     * on.
+     */
+    public static boolean test14()
+    {
+        Lib.debug(dbgTesting, "[ TEST14 ]: Entered TEST14");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        RunQueueSet cpus = new RunQueueSet(scheduler, 2);
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState low = scheduler.newThreadState();
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState pinned = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        pinned.setPriority(6);
+        waiter.setPriority(7);
+        pinned.setAffinity(1L);
+        holder.setAffinity(1L);
+
+        lock.acquire(holder);
+        cpus.ready(low);
+        cpus.ready(pinned);
+        cpus.ready(holder);
+        holder.setAffinity(PriorityScheduler.kAllCPUs);
+        boolean placed = cpus.getLength(0) == 3 && cpus.getLength(1) == 0;
+        lock.waitForAccess(waiter);
+
+        boolean stolen = 
+            cpus.nextThread(1) == holder
+            && cpus.nextThread(1) == low
+            && cpus.nextThread(1) == null
+            && cpus.getSteals() == 2
+            && holder.getLastCPU() == 1;
+        boolean pinnedRan = cpus.nextThread(0) == pinned;
+        cpus.ready(low);
+        boolean returned = cpus.getLength(1) == 1 && cpus.getLength(0) == 0;
+        host.restoreInterrupts(st);
+
+        if(placed && stolen && pinnedRan && returned)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST14 ]: ERROR: Failed test14. placed " + placed + " stolen " + stolen + " pinnedRan " + pinnedRan + " returned " + returned);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Drive a ConcurrentScheduler from real Java threads. Each worker 
+     * cycles its own threads through its own plain queue, which must hand 
+     * them back highest priority first, while as many others each keep 
+     * passing a donating lock of their own between two threads. The lock 
+     * holders all wait on one more lock, so every donation also reaches 
+     * its holder, which must be back at its own priority at the end.
+     */
+    public static boolean test15()
+    {
+        Lib.debug(dbgTesting, "[ TEST15 ]: Entered TEST15");
+        ConcurrentScheduler.ConcurrentHost host = new ConcurrentScheduler.ConcurrentHost();
+        final ConcurrentScheduler scheduler = 
+            new ConcurrentScheduler(new PriorityScheduler(host), host);
+        Thread[] workers = new Thread[2 * concurrentWorkers];
+        final boolean[] ok = new boolean[workers.length];
+
+        for(int w = 0; w < concurrentWorkers; w++) {
+            final int id = w;
+            final ConcurrentScheduler.ConcurrentQueue queue = 
+                scheduler.newThreadQueue(false);
+            final PriorityScheduler.ThreadState[] threads = 
+                new PriorityScheduler.ThreadState[8];
+            for(int i = 0; i < threads.length; i++) {
+                threads[i] = scheduler.newThreadState();
+                scheduler.setPriority(threads[i], i);
+            }
+            workers[w] = new Thread(new Runnable() {
+                public void run() {
+                    boolean inOrder = true;
+                    for(int op = 0; op < concurrentOps; op++) {
+                        for(int i = 0; i < threads.length; i++) {
+                            queue.waitForAccess(threads[(i + op) % threads.length]);
+                        }
+                        int last = Integer.MAX_VALUE;
+                        for(int i = 0; i < threads.length; i++) {
+                            PriorityScheduler.ThreadState next = queue.nextThreadState();
+                            int ep = scheduler.getEffectivePriority(next);
+                            inOrder = inOrder && ep <= last;
+                            last = ep;
+                        }
+                        inOrder = inOrder && queue.nextThreadState() == null;
+                    }
+                    ok[id] = inOrder;
+                }
+            });
+        }
+
+        // Each lock worker passes its own donating lock between its own 
+        // holder and waiter. The holders all wait on one lock held by root, 
+        // so the donations flow on to root and the workers' chains meet.
+        final ConcurrentScheduler.ConcurrentQueue top = scheduler.newThreadQueue(true);
+        final PriorityScheduler.ThreadState root = scheduler.newThreadState();
+        top.acquire(root);
+        for(int w = concurrentWorkers; w < workers.length; w++) {
+            final int id = w;
+            final ConcurrentScheduler.ConcurrentQueue lock = scheduler.newThreadQueue(true);
+            final PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+            final PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+            scheduler.setPriority(waiter, 7);
+            top.waitForAccess(holder);
+            workers[w] = new Thread(new Runnable() {
+                public void run() {
+                    boolean donated = true;
+                    for(int op = 0; op < concurrentLockOps; op++) {
+                        lock.acquire(holder);
+                        lock.waitForAccess(waiter);
+                        donated = donated && scheduler.getEffectivePriority(holder) == 7;
+                        donated = donated && scheduler.getEffectivePriority(root) == 7;
+                        donated = donated && lock.nextThreadState() == waiter;
+                        donated = donated && scheduler.getEffectivePriority(holder) == 1;
+                        lock.nextThreadState();
+                    }
+                    ok[id] = donated;
+                }
+            });
+        }
+
+        for(int w = 0; w < workers.length; w++) { workers[w].start(); }
+        boolean passed = true;
+        for(int w = 0; w < workers.length; w++) {
+            try {
+                workers[w].join();
+            } catch(InterruptedException e) {
+                passed = false;
+            }
+            passed = passed && ok[w];
+        }
+        passed = passed && scheduler.getEffectivePriority(root) == 1;
+
+        if(passed)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST15 ]: ERROR: Failed test15. a worker saw a wrong order or donation");
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * PriorityExecutor. With its one carrier held up, queued tasks must run 
+     * highest priority first, and a low priority task holding a 
+     * PriorityLock must run at the priority of the task waiting for it.
+     */
+    public static boolean test16()
+    {
+        Lib.debug(dbgTesting, "[ TEST16 ]: Entered TEST16");
+        final PriorityExecutor executor = new PriorityExecutor(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final StringBuffer order = new StringBuffer();
+        boolean inOrder = false;
+        boolean donated = false;
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    awaitLatch(gate);
+                }
+            });
+            started.await();
+            for(int p = 0; p <= 7; p += 7) {
+                for(int i = 1; i <= 4; i++) {
+                    final int priority = (i * 5 + p) % 8;
+                    executor.execute(new Runnable() {
+                        public void run() { order.append(priority); }
+                    }, priority);
+                }
+            }
+            gate.countDown();
+            final CountDownLatch drained = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() { drained.countDown(); }
+            }, 0);
+            drained.await();
+            inOrder = order.toString().equals("76544321");
+
+            final PriorityExecutor pool = new PriorityExecutor(2);
+            final PriorityExecutor.PriorityLock lock = pool.newLock();
+            final CountDownLatch held = new CountDownLatch(1);
+            final CountDownLatch waiting = new CountDownLatch(1);
+            final int[] seen = new int[1];
+            pool.execute(new Runnable() {
+                public void run() {
+                    lock.acquire();
+                    held.countDown();
+                    awaitLatch(waiting);
+                    while(lock.getWaiterCount() == 0) { Thread.yield(); }
+                    seen[0] = pool.getEffectivePriority(pool.currentState());
+                    lock.release();
+                }
+            }, 0);
+            held.await();
+            pool.execute(new Runnable() {
+                public void run() {
+                    waiting.countDown();
+                    lock.acquire();
+                    lock.release();
+                }
+            }, 6);
+            pool.shutdown();
+            pool.awaitTermination();
+            executor.shutdown();
+            executor.awaitTermination();
+            donated = seen[0] == 6 && pool.getNumCompleted() == 2;
+        } catch(InterruptedException e) {
+            System.out.println("[ TEST16 ]: ERROR: " + e);
+        }
+
+        if(inOrder && donated)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST16 ]: ERROR: Failed test16. order " + order + " donated " + donated);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * A queue that does not transfer priority skips donation bookkeeping, 
+     * but a lock holder waiting on it must still move up when it receives 
+     * a donation, and keep its donations after being dispatched from it.
+     */
+    public static boolean test17()
+    {
+        Lib.debug(dbgTesting, "[ TEST17 ]: Entered TEST17");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue ready = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState other = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        other.setPriority(4);
+        waiter.setPriority(6);
+
+        lock.acquire(holder);
+        ready.waitForAccess(other);
+        ready.waitForAccess(holder);
+        lock.waitForAccess(waiter);
+        boolean movedUp = ready.getLevelDepth(6) == 1 && ready.nextThreadState() == holder;
+        ready.waitForAccess(holder);
+        boolean kept = 
+            ready.nextThreadState() == holder 
+            && holder.getEffectivePriority() == 6
+            && ready.nextThreadState() == other
+            && holder.getEffectivePriority() == 6;
+        lock.nextThreadState();
+        boolean revoked = holder.getEffectivePriority() == holder.getPriority();
+        host.restoreInterrupts(st);
+
+        if(movedUp && kept && revoked)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST17 ]: ERROR: Failed test17. movedUp " + movedUp + " kept " + kept + " revoked " + revoked);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * A scheduler whose priorities span the whole non-negative int range 
+     * gets sparse queues. Threads spread over the range must come off 
+     * highest priority first and in FIFO order within a priority, and a 
+     * donation must move a waiting holder to the donor's level.
+     */
+    public static boolean test18()
+    {
+        Lib.debug(dbgTesting, "[ TEST18 ]: Entered TEST18");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new WidePriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue ready = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        Random random = new Random(18);
+        PriorityScheduler.ThreadState[] threads = new PriorityScheduler.ThreadState[500];
+        boolean ordered = ready.sparse;
+
+        for(int round = 0; round < 4; round++) {
+            for(int i = 0; i < threads.length; i++) {
+                if(threads[i] == null) { threads[i] = scheduler.newThreadState(); }
+                int priority = random.nextInt(50) == 0 
+                    ? Integer.MAX_VALUE 
+                    : random.nextInt(Integer.MAX_VALUE);
+                threads[i].setPriority(priority);
+                ready.waitForAccess(threads[i]);
+            }
+            PriorityScheduler.ThreadState last = null;
+            for(int i = 0; i < threads.length; i++) {
+                PriorityScheduler.ThreadState next = ready.nextThreadState();
+                ordered = ordered && next != null 
+                    && (last == null 
+                        || next.getPriority() < last.getPriority() 
+                        || (next.getPriority() == last.getPriority() 
+                            && next.traceID > last.traceID));
+                last = next;
+            }
+            ordered = ordered && ready.nextThreadState() == null;
+        }
+
+        PriorityScheduler.ThreadState holder = threads[0];
+        PriorityScheduler.ThreadState waiter = threads[1];
+        holder.setPriority(3);
+        waiter.setPriority(1 << 30);
+        threads[2].setPriority(4);
+        lock.acquire(holder);
+        ready.waitForAccess(threads[2]);
+        ready.waitForAccess(holder);
+        lock.waitForAccess(waiter);
+        boolean donated = 
+            ready.getLevelDepth(1 << 30) == 1 
+            && ready.getLevelDepth(3) == 0 
+            && ready.nextThreadState() == holder;
+        host.restoreInterrupts(st);
+
+        if(ordered && donated)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST18 ]: ERROR: Failed test18. ordered " + ordered + " donated " + donated);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * Queue pooling. With pooling off nothing is kept. With it on, a 
+     * drained lock queue comes back from newThreadQueue() of the same kind 
+     * with its counters cleared, and still donates, and the pool never 
+     * grows past its size.
+     */
+    public static boolean test19()
+    {
+        Lib.debug(dbgTesting, "[ TEST19 ]: Entered TEST19");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        waiter.setPriority(5);
+
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        boolean off = !scheduler.recycleThreadQueue(lock);
+
+        scheduler.setQueuePoolSize(2);
+        lock.acquire(holder);
+        lock.waitForAccess(waiter);
+        lock.nextThreadState();
+        lock.nextThreadState();
+        boolean pooled = scheduler.recycleThreadQueue(lock);
+        boolean kinds = 
+            scheduler.newThreadQueue(false) != lock 
+            && scheduler.newThreadQueue(true) == lock
+            && scheduler.getNumPooledQueues() == 0
+            && lock.getMetrics().getEnqueues() == 0;
+        lock.acquire(holder);
+        lock.waitForAccess(waiter);
+        boolean donates = holder.getEffectivePriority() == 5;
+        lock.nextThreadState();
+        lock.nextThreadState();
+
+        for(int i = 0; i < 3; i++) {
+            scheduler.recycleThreadQueue(scheduler.createQueue(false));
+        }
+        boolean bounded = scheduler.getNumPooledQueues() == 2;
+        scheduler.setQueuePoolSize(0);
+        bounded = bounded && scheduler.getNumPooledQueues() == 0;
+        host.restoreInterrupts(st);
+
+        if(off && pooled && kinds && donates && bounded)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST19 ]: ERROR: Failed test19. off " + off + " pooled " + pooled + " kinds " + kinds + " donates " + donates + " bounded " + bounded);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * A thread that has never received a donation shares the empty 
+     * donation list and heap and keeps no DonationTracker, even after its 
+     * priority changes. Its own storage appears with the first donation 
+     * and works as before.
+     */
+    public static boolean test20()
+    {
+        Lib.debug(dbgTesting, "[ TEST20 ]: Entered TEST20");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue lock = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        holder.setPriority(2);
+        waiter.setPriority(6);
+        boolean shared = 
+            holder.donationManagementDB == PriorityScheduler.kNoDonationList
+            && holder.donationHeap == PriorityScheduler.kNoDonationHeap
+            && holder.spareDonations == null
+            && waiter.spareDonations == null;
+
+        lock.acquire(holder);
+        lock.waitForAccess(waiter);
+        boolean donated = 
+            holder.getEffectivePriority() == 6
+            && holder.donationManagementDB.size() == 1
+            && holder.donationManagementDB.first().getDonor() == waiter
+            && PriorityScheduler.kNoDonationList.size() == 0
+            && PriorityScheduler.kNoDonationHeap.size() == 0;
+        lock.nextThreadState();
+        boolean revoked = 
+            holder.getEffectivePriority() == 2 
+            && holder.donationManagementDB.isEmpty();
+        host.restoreInterrupts(st);
+
+        if(shared && donated && revoked)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST20 ]: ERROR: Failed test20. shared " + shared + " donated " + donated + " revoked " + revoked);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * CompactPriorityScheduler against PriorityScheduler. Random lock and 
+     * ready queue traffic, with each thread waiting on at most one queue 
+     * and no donation cycles, must pick the same threads and give every 
+     * thread the same effective priority. A freed handle is reused, and a 
+     * finished KThread gives its slot and its boxed handle to the next.
+     *
+     * The two documented differences are checked as well: a waiter that 
+     * queued on a lock with no holder donates to the later holder only 
+     * under the compact scheduler, and only a PriorityScheduler subclass 
+     * can take priorities above priorityMaximum.
+     */
+    public static boolean test21()
+    {
+        Lib.debug(dbgTesting, "[ TEST21 ]: Entered TEST21");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler reference = new PriorityScheduler(host);
+        CompactPriorityScheduler compact = new CompactPriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        int numThreads = 24;
+        int numLocks = 4;
+        PriorityScheduler.ThreadState[] states = new PriorityScheduler.ThreadState[numThreads];
+        int[] handles = new int[numThreads];
+        int[] waitingOn = new int[numThreads];
+        for(int i = 0; i < numThreads; i++) {
+            states[i] = reference.newThreadState();
+            handles[i] = compact.newThread();
+            waitingOn[i] = -1;
+        }
+        PriorityScheduler.PriorityQueue[] queues = new PriorityScheduler.PriorityQueue[numLocks + 2];
+        CompactPriorityScheduler.CompactQueue[] compactQueues = 
+            new CompactPriorityScheduler.CompactQueue[queues.length];
+        PriorityScheduler.ThreadState[] holders = new PriorityScheduler.ThreadState[queues.length];
+        for(int q = 0; q < queues.length; q++) {
+            queues[q] = (PriorityScheduler.PriorityQueue)reference.newThreadQueue(q < numLocks);
+            compactQueues[q] = 
+                (CompactPriorityScheduler.CompactQueue)compact.newThreadQueue(q < numLocks);
+        }
+
+        Random random = new Random(21);
+        boolean same = true;
+        for(int step = 0; step < compactOps && same; step++) {
+            int i = random.nextInt(numThreads);
+            int q = random.nextInt(queues.length);
+            int op = random.nextInt(3);
+            if(op == 0) {
+                int priority = random.nextInt(PriorityScheduler.priorityMaximum + 1);
+                states[i].setPriority(priority);
+                compact.setPriority(handles[i], priority);
+            } else if(op == 1 && q < numLocks && holders[q] == null) {
+                queues[q].acquire(states[i]);
+                compactQueues[q].acquire(handles[i]);
+                holders[q] = states[i];
+            } else if(op == 1 && waitingOn[i] == -1 && !wouldBlockOn(states, holders, waitingOn, i, q)) {
+                queues[q].waitForAccess(states[i]);
+                compactQueues[q].waitForAccess(handles[i]);
+                waitingOn[i] = q;
+            } else if(op == 2) {
+                PriorityScheduler.ThreadState next = queues[q].nextThreadState();
+                int handle = compactQueues[q].nextThreadHandle();
+                int picked = -1;
+                for(int j = 0; j < numThreads; j++) {
+                    if(states[j] == next) { picked = j; }
+                }
+                same = picked == -1 
+                    ? handle == CompactPriorityScheduler.kNone 
+                    : handle == handles[picked];
+                if(picked != -1) { waitingOn[picked] = -1; }
+                if(q < numLocks) { holders[q] = next; }
+            }
+            for(int j = 0; j < numThreads && same; j++) {
+                same = states[j].getEffectivePriority() 
+                    == compact.getEffectivePriority(handles[j]);
+            }
+        }
+
+        int spare = compact.newThread();
+        compact.freeThread(spare);
+        boolean reused = 
+            compact.newThread() == spare 
+            && compact.getNumThreads() == numThreads + 1;
+
+        KThread finishing = new KThread();
+        CompactPriorityScheduler.CompactQueue joinQueue = 
+            (CompactPriorityScheduler.CompactQueue)compact.newThreadQueue(true);
+        joinQueue.acquire(finishing);
+        Object box = finishing.schedulingState;
+        int numLive = compact.getNumThreads();
+        compact.threadFinished(finishing);
+        KThread successor = new KThread();
+        compact.setPriority(successor, 3);
+        boolean finished = 
+            finishing.schedulingState == null
+            && joinQueue.getHolder() == CompactPriorityScheduler.kNone
+            && successor.schedulingState == box
+            && compact.getNumThreads() == numLive;
+
+        PriorityScheduler.PriorityQueue unheld = 
+            (PriorityScheduler.PriorityQueue)reference.newThreadQueue(true);
+        CompactPriorityScheduler.CompactQueue compactUnheld = 
+            (CompactPriorityScheduler.CompactQueue)compact.newThreadQueue(true);
+        PriorityScheduler.ThreadState first = reference.newThreadState();
+        PriorityScheduler.ThreadState late = reference.newThreadState();
+        int compactFirst = compact.newThread();
+        int compactLate = compact.newThread();
+        first.setPriority(2);
+        late.setPriority(1);
+        compact.setPriority(compactFirst, 2);
+        compact.setPriority(compactLate, 1);
+        unheld.waitForAccess(first);
+        unheld.waitForAccess(late);
+        compactUnheld.waitForAccess(compactFirst);
+        compactUnheld.waitForAccess(compactLate);
+        boolean holderlessDiffers = 
+            unheld.nextThreadState() == first
+            && compactUnheld.nextThreadHandle() == compactFirst;
+        late.setPriority(6);
+        compact.setPriority(compactLate, 6);
+        holderlessDiffers = 
+            holderlessDiffers
+            && first.getEffectivePriority() == 2
+            && compact.getEffectivePriority(compactFirst) == 6;
+
+        PriorityScheduler.ThreadState wide = 
+            new WidePriorityScheduler(host).newThreadState();
+        wide.setPriority(PriorityScheduler.priorityMaximum + 1);
+        boolean rangeDiffers = 
+            wide.getPriority() == PriorityScheduler.priorityMaximum + 1;
+        try {
+            compact.setPriority(compactFirst, PriorityScheduler.priorityMaximum + 1);
+            rangeDiffers = false;
+        } catch(Error e) {
+        }
+        host.restoreInterrupts(st);
+
+        if(same && reused && finished && holderlessDiffers && rangeDiffers)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST21 ]: ERROR: Failed test21. same " + same + " reused " + reused + " finished " + finished + " holderlessDiffers " + holderlessDiffers + " rangeDiffers " + rangeDiffers);
+        return EXIT_FAILURE;
+    }
+
+    // True if thread i waiting on queue q would wait on itself, through 
+    // q's holder or a chain of holders waiting on other queues
+    private static boolean wouldBlockOn(
+        PriorityScheduler.ThreadState[] states,
+        PriorityScheduler.ThreadState[] holders,
+        int[] waitingOn,
+        int i,
+        int q) {
+        for(PriorityScheduler.ThreadState h = holders[q]; h != null; ) {
+            if(h == states[i]) { return true; }
+            int j = 0;
+            while(states[j] != h) { j++; }
+            h = waitingOn[j] == -1 ? null : holders[waitingOn[j]];
+        }
+        return false;
+    }
+
+    /**
+     * The verification tier belongs to one scheduler. Turning it off on 
+     * one leaves others alone, and a queue's sampled checks run 
+     * only under its own scheduler's tier.
+     */
+    public static boolean test22()
+    {
+        Lib.debug(dbgTesting, "[ TEST22 ]: Entered TEST22");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler quiet = new PriorityScheduler(host);
+        PriorityScheduler checked = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        quiet.setVerificationTier(PriorityScheduler.kVerifyOff, 1);
+        checked.setVerificationTier(PriorityScheduler.kVerifySampled, 2);
+        boolean separate = 
+            quiet.getVerificationTier() == PriorityScheduler.kVerifyOff
+            && checked.getVerificationTier() == PriorityScheduler.kVerifySampled
+            && checked.getVerificationPeriod() == 2
+            && new PriorityScheduler(host).getVerificationTier() 
+                != PriorityScheduler.kVerifyOff;
+
+        PriorityScheduler.PriorityQueue quietQueue = 
+            (PriorityScheduler.PriorityQueue)quiet.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue checkedQueue = 
+            (PriorityScheduler.PriorityQueue)checked.newThreadQueue(false);
+        boolean due = 
+            !quietQueue.isVerificationDue() 
+            && !quietQueue.isVerificationDue()
+            && !checkedQueue.isVerificationDue()
+            && checkedQueue.isVerificationDue();
+        host.restoreInterrupts(st);
+
+        if(separate && due)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST22 ]: ERROR: Failed test22. separate " + separate + " due " + due);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * recycleThreadQueue() turns away, even with asserts off, a queue with 
+     * a waiter, a lock queue that still has a holder, a queue that is 
+     * already pooled, the ready queue and another scheduler's queue. None 
+     * of them is handed out again by newThreadQueue().
+     */
+    public static boolean test23()
+    {
+        Lib.debug(dbgTesting, "[ TEST23 ]: Entered TEST23");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler = new PriorityScheduler(host);
+        PriorityScheduler other = new PriorityScheduler(host);
+        boolean st = host.disableInterrupts();
+        scheduler.setQueuePoolSize(8);
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        PriorityScheduler.PriorityQueue busy = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue held = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.PriorityQueue ready = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue drained = 
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        busy.waitForAccess(waiter);
+        held.acquire(holder);
+        host.setReadyQueue(ready);
+
+        boolean rejected = 
+            !scheduler.recycleThreadQueue(busy)
+            && !scheduler.recycleThreadQueue(held)
+            && !scheduler.recycleThreadQueue(ready)
+            && !scheduler.recycleThreadQueue(other.newThreadQueue(false))
+            && scheduler.recycleThreadQueue(drained)
+            && !scheduler.recycleThreadQueue(drained)
+            && scheduler.getNumPooledQueues() == 1;
+        boolean handedOut = 
+            scheduler.newThreadQueue(false) == drained
+            && scheduler.newThreadQueue(false) != drained
+            && busy.nextThreadState() == waiter;
+        host.restoreInterrupts(st);
+
+        if(rejected && handedOut)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST23 ]: ERROR: Failed test23. rejected " + rejected + " handedOut " + handedOut);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * PriorityExecutor failures. On a single carrier, one task throws a 
+     * RuntimeException and the next an Error, each while holding a 
+     * PriorityLock. Both must reach the handler in order, both locks must 
+     * be released for them, and the carrier must live on to run a task 
+     * that takes both locks.
+     */
+    public static boolean test24()
+    {
+        Lib.debug(dbgTesting, "[ TEST24 ]: Entered TEST24");
+        final PriorityExecutor executor = new PriorityExecutor(1);
+        final PriorityExecutor.PriorityLock first = executor.newLock();
+        final PriorityExecutor.PriorityLock second = executor.newLock();
+        final StringBuffer reported = new StringBuffer();
+        final CountDownLatch finished = new CountDownLatch(1);
+        boolean survived = false;
+
+        executor.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread carrier, Throwable e) {
+                reported.append(e.getMessage());
+            }
+        });
+        executor.execute(new Runnable() {
+            public void run() {
+                first.acquire();
+                throw new IllegalStateException("runtime ");
+            }
+        }, 7);
+        executor.execute(new Runnable() {
+            public void run() {
+                first.acquire();
+                second.acquire();
+                throw new Error("error ");
+            }
+        }, 6);
+        executor.execute(new Runnable() {
+            public void run() {
+                first.acquire();
+                second.acquire();
+                second.release();
+                first.release();
+                finished.countDown();
+            }
+        }, 5);
+
+        try {
+            survived = finished.await(10, TimeUnit.SECONDS);
+            executor.shutdown();
+            executor.awaitTermination();
+        } catch(InterruptedException e) {
+            System.out.println("[ TEST24 ]: ERROR: " + e);
+        }
+        boolean counted = 
+            executor.getNumFailed() == 2 && executor.getNumCompleted() == 3;
+
+        if(survived && counted && reported.toString().equals("runtime error "))
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST24 ]: ERROR: Failed test24. survived " + survived + " counted " + counted + " reported " + reported);
+        return EXIT_FAILURE;
+    }
+
+    /**
+     * PriorityExecutor misuse. An out of range priority is turned away by 
+     * execute(), and a task's second acquire() of a lock it holds and its 
+     * release() of a lock it does not hold fail in that task. None of them 
+     * may leave the host guard held, so the executor must go on to run a 
+     * task that takes the same lock.
+     */
+    public static boolean test25()
+    {
+        Lib.debug(dbgTesting, "[ TEST25 ]: Entered TEST25");
+        final PriorityExecutor executor = new PriorityExecutor(1);
+        final PriorityExecutor.PriorityLock lock = executor.newLock();
+        final boolean[] rejected = new boolean[2];
+        final CountDownLatch finished = new CountDownLatch(1);
+        boolean badPriority = false;
+        boolean survived = false;
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {}
+            }, PriorityScheduler.priorityMaximum + 1);
+        } catch(IllegalArgumentException e) {
+            badPriority = true;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                lock.acquire();
+                try {
+                    lock.acquire();
+                } catch(Error e) {
+                    rejected[0] = true;
+                }
+                lock.release();
+                try {
+                    lock.release();
+                } catch(Error e) {
+                    rejected[1] = true;
+                }
+            }
+        }, 7);
+        executor.execute(new Runnable() {
+            public void run() {
+                lock.acquire();
+                lock.release();
+                finished.countDown();
+            }
+        }, 5);
+
+        try {
+            survived = finished.await(10, TimeUnit.SECONDS);
+            executor.shutdown();
+            executor.awaitTermination();
+        } catch(InterruptedException e) {
+            System.out.println("[ TEST25 ]: ERROR: " + e);
+        }
+        boolean counted = 
+            executor.getNumFailed() == 0 && executor.getNumCompleted() == 2;
+
+        if(badPriority && rejected[0] && rejected[1] && survived && counted)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST25 ]: ERROR: Failed test25. badPriority " + badPriority + " reentrant " + rejected[0] + " notHeld " + rejected[1] + " survived " + survived + " counted " + counted);
+        return EXIT_FAILURE;
+    }
+
+    // Scheduler whose priorities run from 0 to Integer.MAX_VALUE
+    static class WidePriorityScheduler extends PriorityScheduler
+    {
+        WidePriorityScheduler(PriorityScheduler.Host host) {
+            super(host);
+        }
+
+        @Override
+        protected int getPriorityMaximum() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    // Wait for latch, ignoring interrupts
+    private static void awaitLatch(CountDownLatch latch) {
+        while(true) {
+            try {
+                latch.await();
+                return;
+            } catch(InterruptedException e) {
+            }
+        }
+    }
+
     // Run all tests defined here
     public static void runall() 
     {
@@ -962,6 +2095,40 @@ public class PrioritySchedulerTest
         System.out.println("[ TEST7 ]: PASSED");
         Lib.assertTrue(test8());
         System.out.println("[ TEST8 ]: PASSED");
+        Lib.assertTrue(test9());
+        System.out.println("[ TEST9 ]: PASSED");
+        Lib.assertTrue(test10());
+        System.out.println("[ TEST10 ]: PASSED");
+        Lib.assertTrue(test11());
+        System.out.println("[ TEST11 ]: PASSED");
+        Lib.assertTrue(test12());
+        System.out.println("[ TEST12 ]: PASSED");
+        Lib.assertTrue(test13());
+        System.out.println("[ TEST13 ]: PASSED");
+        Lib.assertTrue(test14());
+        System.out.println("[ TEST14 ]: PASSED");
+        Lib.assertTrue(test15());
+        System.out.println("[ TEST15 ]: PASSED");
+        Lib.assertTrue(test16());
+        System.out.println("[ TEST16 ]: PASSED");
+        Lib.assertTrue(test17());
+        System.out.println("[ TEST17 ]: PASSED");
+        Lib.assertTrue(test18());
+        System.out.println("[ TEST18 ]: PASSED");
+        Lib.assertTrue(test19());
+        System.out.println("[ TEST19 ]: PASSED");
+        Lib.assertTrue(test20());
+        System.out.println("[ TEST20 ]: PASSED");
+        Lib.assertTrue(test21());
+        System.out.println("[ TEST21 ]: PASSED");
+        Lib.assertTrue(test22());
+        System.out.println("[ TEST22 ]: PASSED");
+        Lib.assertTrue(test23());
+        System.out.println("[ TEST23 ]: PASSED");
+        Lib.assertTrue(test24());
+        System.out.println("[ TEST24 ]: PASSED");
+        Lib.assertTrue(test25());
+        System.out.println("[ TEST25 ]: PASSED");
 
         System.out.println("\n******* All PriorityScheduler Tests Passed ************\n");
     }
@@ -970,4 +2137,13 @@ public class PrioritySchedulerTest
     private static final char dbgTesting = 'x';
     private static final boolean EXIT_SUCCESS = true;
     private static final boolean EXIT_FAILURE = false;
+    private static final int allocationWarmup = 1000;
+    private static final int allocationOps = 100000;
+    private static final int replayOps = 20000;
+    private static final int concurrentWorkers = 4;
+    private static final int concurrentOps = 5000;
+
+    /** Lock handoffs per lock worker in test15, enough for them to overlap */
+    private static final int concurrentLockOps = 50000;
+    private static final int compactOps = 20000;
 }
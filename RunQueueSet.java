@@ -0,0 +1,161 @@
+package nachos.threads;
+import nachos.machine.Lib;
+
+/**
+ * Per-CPU run queues for simulating a multiprocessor.
+ *
+ * <p>
+ * Each simulated CPU owns a queue from the scheduler's newThreadQueue(false),
+ * so the queues order threads exactly as the scheduler's ready queue would
+ * (by priority, tickets, stride or feedback level). A ready thread goes back
+ * on the queue of the CPU it last ran on if its affinity still allows it,
+ * otherwise on the least loaded CPU it may use. A CPU takes its next thread
+ * from its own queue; when that is empty it steals from its busiest peer,
+ * which chooses among the threads allowed to run on the thief by its own
+ * policy (see PriorityQueue.findEligible()): the longest waiting thread of
+ * the highest level, a lottery over the eligible threads' tickets, or the
+ * smallest pass. A stolen thread is not charged as if it had been
+ * dequeued to run.
+ *
+ * <p>
+ * Priority donation is unaffected: a thread's QueueLinks tie it to the run
+ * queue it is on, so a donation received while it waits moves it on that
+ * queue wherever it is. Each operation touches only one or two run queues,
+ * plus an O(CPUs) scan of queue lengths when placing or stealing.
+ *
+ * <p>
+ * At most kMaxCPUs CPUs are supported, one per bit of a ThreadState's
+ * affinity mask.
+ */
+public class RunQueueSet
+{
+    /**
+     * Create numCPUs run queues under scheduler.
+     *
+     * @param scheduler Scheduler whose queues order each CPU's threads.
+     * @param numCPUs   Number of simulated CPUs, at most kMaxCPUs.
+     */
+    public RunQueueSet(PriorityScheduler scheduler, int numCPUs) {
+        Lib.assertTrue(numCPUs > 0 && numCPUs <= kMaxCPUs);
+        this.scheduler = scheduler;
+        runQueues = new PriorityScheduler.PriorityQueue[numCPUs];
+        lengths = new int[numCPUs];
+        for(int cpu = 0; cpu < numCPUs; cpu++) {
+            runQueues[cpu] =
+                (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        }
+    }
+
+    /**
+     * Make a thread runnable.
+     *
+     * @param ts    Thread that is not on any of these run queues.
+     */
+    public void ready(PriorityScheduler.ThreadState ts) {
+        Lib.assertTrue(scheduler.host.interruptsDisabled());
+        int cpu = ts.getLastCPU();
+        if(cpu == PriorityScheduler.kNoCPU
+            || cpu >= runQueues.length
+            || !ts.canRunOn(cpu)) {
+            cpu = getLeastLoaded(ts);
+        }
+        runQueues[cpu].waitForAccess(ts);
+        lengths[cpu]++;
+    }
+
+    /**
+     * Choose the next thread for cpu to run, stealing one if its own run
+     * queue is empty.
+     *
+     * @param cpu   CPU that is about to switch threads.
+     * @return the thread to run, or null if no runnable thread may run on
+     *         cpu.
+     */
+    public PriorityScheduler.ThreadState nextThread(int cpu) {
+        Lib.assertTrue(scheduler.host.interruptsDisabled());
+        PriorityScheduler.ThreadState next = null;
+        if(lengths[cpu] > 0) {
+            next = runQueues[cpu].nextThreadState();
+            lengths[cpu]--;
+        } else {
+            next = steal(cpu);
+        }
+        if(next != null) { next.lastCPU = cpu; }
+        return next;
+    }
+
+    /** Return the run queue of cpu. */
+    public PriorityScheduler.PriorityQueue getRunQueue(int cpu) {
+        return runQueues[cpu];
+    }
+
+    /** Return the number of threads waiting on cpu's run queue. */
+    public int getLength(int cpu) {
+        return lengths[cpu];
+    }
+
+    public int getNumCPUs() {
+        return runQueues.length;
+    }
+
+    /** Return the number of threads taken from another CPU's run queue. */
+    public long getSteals() {
+        return steals;
+    }
+
+    /**
+     * Take the thread the longest peer run queue chooses among those
+     * allowed on cpu.
+     *
+     * The busiest peer is tried first. Only if affinity rules out all of its
+     * threads are the others searched, longest first.
+     */
+    private PriorityScheduler.ThreadState steal(int cpu) {
+        long tried = 1L << cpu;
+        while(true) {
+            int victim = -1;
+            for(int peer = 0; peer < runQueues.length; peer++) {
+                if(((tried >>> peer) & 1) == 0
+                    && lengths[peer] > 0
+                    && (victim == -1 || lengths[peer] > lengths[victim])) {
+                    victim = peer;
+                }
+            }
+            if(victim == -1) { return null; }
+            tried |= 1L << victim;
+
+            PriorityScheduler.ThreadState ts = runQueues[victim].findEligible(cpu);
+            if(ts != null) {
+                runQueues[victim].removeWaiter(ts);
+                lengths[victim]--;
+                steals++;
+                return ts;
+            }
+        }
+    }
+
+    /** Return the CPU with the shortest run queue that ts may run on. */
+    private int getLeastLoaded(PriorityScheduler.ThreadState ts) {
+        int best = -1;
+        for(int cpu = 0; cpu < runQueues.length; cpu++) {
+            if(ts.canRunOn(cpu) && (best == -1 || lengths[cpu] < lengths[best])) {
+                best = cpu;
+            }
+        }
+        Lib.assertTrue(best != -1);
+        return best;
+    }
+
+    private final PriorityScheduler scheduler;
+
+    /** Run queue of each CPU */
+    private final PriorityScheduler.PriorityQueue[] runQueues;
+
+    /** Number of threads waiting on each run queue */
+    private final int[] lengths;
+
+    private long steals = 0;
+
+    /** Most CPUs a RunQueueSet can have. */
+    public static final int kMaxCPUs = Long.SIZE;
+}
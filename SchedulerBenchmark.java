@@ -0,0 +1,210 @@
+/**
+ * Microbenchmarks for the PriorityScheduler and LotteryScheduler hot paths.
+ *
+ * Calling symantics: - Run a single benchmark contained herein:
+ * SchedulerBenchmark.benchX(...) for the operation X.  - Run the whole
+ * parameter sweep: SchedulerBenchmark.runall().
+ *
+ * Each benchmark builds its own headless scheduler instance (see
+ * PriorityScheduler.HeadlessHost) and its own thread states,
+ * warms up for warmupOps operations and then times timedOps operations with
+ * System.nanoTime(), printing nanoseconds per operation. Random priorities
+ * come from a fixed seed so that runs are reproducible. Consistency
+ * verification is switched off while timing and debug output should be left
+ * disabled, otherwise they dominate the measurement.
+ *
+ * No KThreads are involved, so this runs with or without a simulated
+ * machine.
+ */
+package nachos.threads;
+import java.util.Random;
+
+public class SchedulerBenchmark
+{
+    /**
+     * Time waitForAccess() followed by nextThread() on a queue held at
+     * queueLength waiters. The dequeued thread waits again straight away,
+     * so the queue length stays constant.
+     *
+     * @param lottery       Benchmark LotteryScheduler instead.
+     * @param queueLength   Number of waiters on the queue.
+     * @param priorityRange Priorities (tickets) are drawn from [min, min+range).
+     * @return nanoseconds per waitForAccess()/nextThread() pair.
+     */
+    public static double benchWaitAndNext(boolean lottery, int queueLength, int priorityRange) {
+        PriorityScheduler scheduler = newScheduler(lottery);
+        PriorityScheduler.PriorityQueue queue =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.ThreadState[] threads = 
+            newThreads(scheduler, queueLength + 1, priorityRange);
+        for(int i = 0; i < queueLength; i++) {
+            queue.waitForAccess(threads[i]);
+        }
+        PriorityScheduler.ThreadState spare = threads[queueLength];
+
+        long start = 0;
+        for(int i = 0; i < warmupOps + timedOps; i++) {
+            if(i == warmupOps) { start = System.nanoTime(); }
+            queue.waitForAccess(spare);
+            spare = queue.nextThreadState();
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += spare.hashCode();
+        return (double)elapsed / timedOps;
+    }
+
+    /**
+     * Time pickNextThread() on a queue of queueLength waiters. For a lottery
+     * queue the cached draw is thrown away first so every call draws.
+     *
+     * @param lottery       Benchmark LotteryQueue instead.
+     * @param queueLength   Number of waiters on the queue.
+     * @param priorityRange Priorities (tickets) are drawn from [min, min+range).
+     * @return nanoseconds per pickNextThread().
+     */
+    public static double benchPickNext(boolean lottery, int queueLength, int priorityRange) {
+        PriorityScheduler scheduler = newScheduler(lottery);
+        PriorityScheduler.PriorityQueue queue =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.ThreadState[] threads = 
+            newThreads(scheduler, queueLength, priorityRange);
+        for(int i = 0; i < queueLength; i++) {
+            queue.waitForAccess(threads[i]);
+        }
+        LotteryScheduler.LotteryQueue lotteryQueue =
+            lottery ? (LotteryScheduler.LotteryQueue)queue : null;
+
+        long start = 0;
+        for(int i = 0; i < warmupOps + timedOps; i++) {
+            if(i == warmupOps) { start = System.nanoTime(); }
+            if(lotteryQueue != null) {
+                lotteryQueue.invalidateCachedThread();
+            }
+            sink += queue.pickNextThread().hashCode();
+        }
+        return (double)(System.nanoTime() - start) / timedOps;
+    }
+
+    /**
+     * Time setPriority() on the last thread of a donation chain.
+     *
+     * Thread i holds transferPriority queue i and waits on queue i-1, for
+     * chainDepth queues. Each queue also has fanIn other waiters at random
+     * priorities. Flipping the priority of the thread at the end of the
+     * chain between the top and bottom of the range (at least two values
+     * apart) moves it on its queue and pushes the change down the whole
+     * chain.
+     *
+     * @param lottery       Benchmark LotteryScheduler instead.
+     * @param chainDepth    Number of queues in the chain.
+     * @param fanIn         Extra waiters on every queue in the chain.
+     * @param priorityRange Priorities (tickets) are drawn from [min, min+range).
+     * @return nanoseconds per setPriority().
+     */
+    public static double benchSetPriority(boolean lottery, int chainDepth, int fanIn, int priorityRange) {
+        PriorityScheduler scheduler = newScheduler(lottery);
+        PriorityScheduler.ThreadState[] chain = 
+            newThreads(scheduler, chainDepth + 1, priorityRange);
+        PriorityScheduler.ThreadState[] others = 
+            newThreads(scheduler, chainDepth * fanIn, priorityRange);
+        for(int i = 0; i < chainDepth; i++) {
+            PriorityScheduler.PriorityQueue queue = 
+                (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+            queue.acquire(chain[i]);
+            for(int j = 0; j < fanIn; j++) {
+                queue.waitForAccess(others[i * fanIn + j]);
+            }
+            queue.waitForAccess(chain[i + 1]);
+        }
+        PriorityScheduler.ThreadState tail = chain[chainDepth];
+        int low = scheduler.getPriorityMinimum();
+        int high = low + Math.max(priorityRange, 2) - 1;
+
+        long start = 0;
+        for(int i = 0; i < warmupOps + timedOps; i++) {
+            if(i == warmupOps) { start = System.nanoTime(); }
+            tail.setPriority((i % 2 == 0) ? high : low);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += chain[0].getEffectivePriority();
+        return (double)elapsed / timedOps;
+    }
+
+    /** Run the parameter sweep for both schedulers and print the results. */
+    public static void runall()
+    {
+        for(int l = 0; l < 2; l++) {
+            boolean lottery = l == 1;
+            int[] ranges = lottery ? lotteryRanges : priorityRanges;
+            for(int range : ranges) {
+                for(int length : queueLengths) {
+                    report(lottery, "waitForAccess+nextThread", "len=" + length + " range=" + range,
+                        benchWaitAndNext(lottery, length, range));
+                    report(lottery, "pickNextThread", "len=" + length + " range=" + range,
+                        benchPickNext(lottery, length, range));
+                }
+                for(int depth : chainDepths) {
+                    for(int fanIn : fanIns) {
+                        report(lottery, "setPriority", "depth=" + depth + " fanIn=" + fanIn + " range=" + range,
+                            benchSetPriority(lottery, depth, fanIn, range));
+                    }
+                }
+            }
+        }
+        System.out.println("[ BENCH ]: done (" + sink + ")");
+    }
+
+    /** 
+     * Create a fresh headless scheduler, with its interrupt guard held, so 
+     * no state is shared between benchmarks. 
+     */
+    private static PriorityScheduler newScheduler(boolean lottery) {
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        host.disableInterrupts();
+        PriorityScheduler scheduler = 
+            lottery ? new LotteryScheduler(host) : new PriorityScheduler(host);
+        scheduler.setVerificationTier(PriorityScheduler.kVerifyOff, 1);
+        return scheduler;
+    }
+
+    /**
+     * Create count thread states with random priorities in
+     * [minimum, minimum + priorityRange) under scheduler.
+     */
+    private static PriorityScheduler.ThreadState[] newThreads(
+        PriorityScheduler scheduler, int count, int priorityRange) {
+        Random random = new Random(seed);
+        PriorityScheduler.ThreadState[] threads = new PriorityScheduler.ThreadState[count];
+        for(int i = 0; i < count; i++) {
+            threads[i] = scheduler.newThreadState();
+            threads[i].setPriority(scheduler.getPriorityMinimum() + random.nextInt(priorityRange));
+        }
+        return threads;
+    }
+
+    private static void report(boolean lottery, String operation, String parameters, double nsPerOp) {
+        System.out.println(
+            "[ BENCH ]: "
+            + (lottery ? "lottery  " : "priority ")
+            + operation
+            + " "
+            + parameters
+            + ": "
+            + String.format("%.1f", nsPerOp)
+            + " ns/op"
+        );
+    }
+
+    // Benchmark parameters
+    private static final int[] queueLengths = {1, 16, 256, 4096};
+    private static final int[] priorityRanges = {1, 8};
+    private static final int[] lotteryRanges = {1, 100, 1000000};
+    private static final int[] chainDepths = {1, 4, 16};
+    private static final int[] fanIns = {0, 16};
+    private static final int warmupOps = 20000;
+    private static final int timedOps = 200000;
+    private static final long seed = 1;
+
+    // Keeps results live so the JIT cannot discard the benchmarked calls
+    private static long sink = 0;
+}
@@ -0,0 +1,201 @@
+/**
+ * Replay a SchedulerTrace through a fresh headless scheduler.
+ *
+ * Calling symantics: - Replay a trace file: SchedulerReplay.replay(fileName,
+ * lottery, seed).  - Replay into a scheduler of your own (e.g. a new queue
+ * implementation): new SchedulerReplay(trace, scheduler, host, seed).run().
+ *
+ * The operations a scheduler is driven by (waitForAccess, acquire,
+ * nextThread and setPriority) are reissued in order against the new
+ * scheduler; receiveOffer and revokeDonation records are consequences of
+ * those and are skipped. Each nextThread is checked against the thread the
+ * trace recorded. Threads and queues are created on first reference, with
+ * queues taking transferPriority from the record flags. The host clock is
+ * moved to each record's time so wait statistics come out the same.
+ *
+ * The trace must hold every record since its scheduler was created, i.e. it
+ * must not have wrapped, and tracing must have been attached before any
+ * thread changed priority or waited. To reproduce a LotteryScheduler's
+ * choices, record with LotteryScheduler(host, seed) and replay with the
+ * same seed; a draw made by a pickNextThread() that is not followed by
+ * nextThread() is not in the trace and will make the replay diverge.
+ */
+package nachos.threads;
+import nachos.machine.Lib;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SchedulerReplay
+{
+    /**
+     * Prepare to replay trace into scheduler.
+     *
+     * @param trace     Trace to replay, from SchedulerTrace.open().
+     * @param scheduler A scheduler no other code is using.
+     * @param host      The HeadlessHost scheduler was constructed with.
+     * @param seed      For a LotteryScheduler, the seed the traced
+     *                  scheduler was constructed with. Ignored otherwise.
+     */
+    public SchedulerReplay(
+        SchedulerTrace trace,
+        PriorityScheduler scheduler,
+        PriorityScheduler.HeadlessHost host,
+        long seed) {
+        this.trace = trace;
+        this.scheduler = scheduler;
+        this.host = host;
+        this.seed = seed;
+    }
+
+    /**
+     * Replay trace into a new headless PriorityScheduler or
+     * LotteryScheduler and print a one line summary.
+     *
+     * @param fileName  Trace file to replay.
+     * @param lottery   Replay into a LotteryScheduler.
+     * @param seed      Seed the traced LotteryScheduler was constructed with.
+     * @return true if every nextThread() choice matched.
+     */
+    public static boolean replay(String fileName, boolean lottery, long seed) throws IOException {
+        SchedulerTrace trace = SchedulerTrace.open(fileName);
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        PriorityScheduler scheduler =
+            lottery ? new LotteryScheduler(host, seed) : new PriorityScheduler(host);
+        SchedulerReplay replay = new SchedulerReplay(trace, scheduler, host, seed);
+        boolean matched = replay.run();
+        trace.close();
+        System.out.println(
+            "[ REPLAY ]: "
+            + fileName
+            + ": "
+            + replay.getNumEvents()
+            + " events, "
+            + replay.getNumDecisions()
+            + " decisions, "
+            + replay.getNumMismatches()
+            + " mismatches, "
+            + String.format("%.1f", (double)replay.getElapsedNanos() / Math.max(1, replay.getNumEvents()))
+            + " ns/event"
+        );
+        return matched;
+    }
+
+    /**
+     * Replay the whole trace.
+     *
+     * @return true if every nextThread() choice matched the trace.
+     */
+    public boolean run() {
+        Lib.assertTrue(trace.getOldestRecord() == 0);
+        long numRecords = trace.getNumRecords();
+        boolean intStatus = host.disableInterrupts();
+        long start = System.nanoTime();
+
+        for(long r = 0; r < numRecords; r++) {
+            int event = trace.getEvent(r);
+            if(event == SchedulerTrace.kEventReceiveOffer
+                || event == SchedulerTrace.kEventRevokeDonation) {
+                continue;
+            }
+            long time = trace.getTime(r);
+            if(time > host.getTime()) {
+                host.advanceTime(time - host.getTime());
+            }
+            PriorityScheduler.ThreadState ts = getThread(trace.getThreadID(r));
+            numEvents++;
+
+            switch(event) {
+                case SchedulerTrace.kEventWaitForAccess:
+                    getQueue(r).waitForAccess(ts);
+                    break;
+                case SchedulerTrace.kEventAcquire:
+                    getQueue(r).acquire(ts);
+                    break;
+                case SchedulerTrace.kEventSetPriority:
+                    ts.setPriority((int)trace.getValue(r));
+                    break;
+                case SchedulerTrace.kEventNextThread:
+                    numDecisions++;
+                    if(getQueue(r).nextThreadState() != ts) {
+                        if(numMismatches++ == 0) { firstMismatch = r; }
+                    }
+                    break;
+                default:
+                    Lib.assertNotReached("unknown trace event " + event);
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+        host.restoreInterrupts(intStatus);
+        return numMismatches == 0;
+    }
+
+    /** Number of records reissued to the scheduler by run(). */
+    public long getNumEvents() { return numEvents; }
+
+    /** Number of nextThread() choices checked by run(). */
+    public long getNumDecisions() { return numDecisions; }
+
+    /** Number of nextThread() choices that differed from the trace. */
+    public long getNumMismatches() { return numMismatches; }
+
+    /** Record number of the first mismatched choice, or -1. */
+    public long getFirstMismatch() { return firstMismatch; }
+
+    /** Wall clock time run() spent replaying. */
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    /**
+     * Return the replay thread for a traced thread, creating it on first
+     * reference, or null for SchedulerTrace.kNone.
+     */
+    private PriorityScheduler.ThreadState getThread(int id) {
+        if(id == SchedulerTrace.kNone) { return null; }
+        if(id >= threads.length) {
+            threads = Arrays.copyOf(threads, Math.max(id + 1, 2 * threads.length));
+        }
+        if(threads[id] == null) {
+            threads[id] = scheduler.newThreadState();
+        }
+        return threads[id];
+    }
+
+    /**
+     * Return the replay queue for the queue of record r, creating it on
+     * first reference.
+     */
+    private PriorityScheduler.PriorityQueue getQueue(long r) {
+        int id = trace.getQueueID(r);
+        Lib.assertTrue(id != SchedulerTrace.kNone);
+        if(id >= queues.length) {
+            queues = Arrays.copyOf(queues, Math.max(id + 1, 2 * queues.length));
+        }
+        if(queues[id] == null) {
+            boolean transferPriority =
+                (trace.getFlags(r) & SchedulerTrace.kFlagTransferPriority) != 0;
+            queues[id] =
+                (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(transferPriority);
+            if(queues[id] instanceof LotteryScheduler.LotteryQueue) {
+                ((LotteryScheduler.LotteryQueue)queues[id]).setSeed(
+                    LotteryScheduler.getQueueSeed(seed, id)
+                );
+            }
+        }
+        return queues[id];
+    }
+
+    private final SchedulerTrace trace;
+    private final PriorityScheduler scheduler;
+    private final PriorityScheduler.HeadlessHost host;
+    private final long seed;
+
+    /** Replay state indexed by traced traceID */
+    private PriorityScheduler.ThreadState[] threads = new PriorityScheduler.ThreadState[16];
+    private PriorityScheduler.PriorityQueue[] queues = new PriorityScheduler.PriorityQueue[16];
+
+    // Results of run()
+    private long numEvents = 0;
+    private long numDecisions = 0;
+    private long numMismatches = 0;
+    private long firstMismatch = -1;
+    private long elapsedNanos = 0;
+}
@@ -0,0 +1,226 @@
+package nachos.threads;
+import nachos.machine.Lib;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact binary trace of scheduler events in a memory-mapped ring file.
+ *
+ * <p>
+ * Attach one to a scheduler with PriorityScheduler.setTrace() and every
+ * waitForAccess, acquire, nextThread, receiveOffer, revokeDonation and
+ * setPriority is written as a fixed size record. Records are stored with
+ * absolute puts into a MappedByteBuffer, so recording an event allocates
+ * nothing and never blocks on I/O; the operating system writes the pages
+ * back in its own time. Once capacity records have been written the oldest
+ * are overwritten.
+ *
+ * <p>
+ * File layout (all values big endian):
+ * <pre>
+ *   header (kHeaderSize bytes)
+ *     0  int   kMagic
+ *     4  int   kVersion
+ *     8  int   kRecordSize
+ *    12  int   capacity, in records
+ *    16  long  number of records ever written
+ *   record i of the ring, at kHeaderSize + i * kRecordSize
+ *     0  long  host time
+ *     8  short event, one of the kEvent constants
+ *    10  short flags, kFlagTransferPriority for transferPriority queues
+ *    12  int   thread trace ID, or kNone
+ *    16  int   queue trace ID, or kNone
+ *    20  int   other thread trace ID (donor for donation events), or kNone
+ *    24  long  priority, offer or donation, depending on the event
+ * </pre>
+ * Record n of the whole trace is in ring slot n % capacity, and records
+ * getOldestRecord() to getNumRecords()-1 are still available.
+ */
+public class SchedulerTrace
+{
+    /**
+     * Create a trace file holding up to capacity records, replacing any
+     * existing file of that name.
+     *
+     * @param fileName  Path of the ring file.
+     * @param capacity  Number of records kept before the oldest are
+     *                  overwritten.
+     */
+    public SchedulerTrace(String fileName, int capacity) throws IOException {
+        Lib.assertTrue(capacity > 0);
+        Lib.assertTrue((long)capacity * kRecordSize + kHeaderSize <= Integer.MAX_VALUE);
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        long size = kHeaderSize + (long)capacity * kRecordSize;
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.capacity = capacity;
+        writable = true;
+        buffer.putInt(kMagicOffset, kMagic);
+        buffer.putInt(kVersionOffset, kVersion);
+        buffer.putInt(kRecordSizeOffset, kRecordSize);
+        buffer.putInt(kCapacityOffset, capacity);
+        buffer.putLong(kCountOffset, 0);
+    }
+
+    /** Map an existing trace file read only. */
+    private SchedulerTrace(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if(buffer.getInt(kMagicOffset) != kMagic
+            || buffer.getInt(kVersionOffset) != kVersion
+            || buffer.getInt(kRecordSizeOffset) != kRecordSize) {
+            channel.close();
+            throw new IOException(fileName + " is not a scheduler trace");
+        }
+        capacity = buffer.getInt(kCapacityOffset);
+        numRecords = buffer.getLong(kCountOffset);
+        writable = false;
+    }
+
+    /**
+     * Open a trace written earlier, for reading.
+     *
+     * @param fileName  Path of the ring file.
+     * @return the trace, positioned at its recorded contents.
+     */
+    public static SchedulerTrace open(String fileName) throws IOException {
+        return new SchedulerTrace(fileName);
+    }
+
+    /**
+     * Append one event to the ring.
+     *
+     * @param event     One of the kEvent constants.
+     * @param flags     kFlagTransferPriority or 0.
+     * @param time      Host time of the event.
+     * @param threadID  Trace ID of the thread the event is about.
+     * @param queueID   Trace ID of the queue involved, or kNone.
+     * @param otherID   Trace ID of the donor, or kNone.
+     * @param value     Priority, offer or donation.
+     */
+    public void record(int event, int flags, long time, int threadID, int queueID, int otherID, long value) {
+        Lib.assertTrue(writable);
+        int offset = kHeaderSize + nextSlot * kRecordSize;
+        buffer.putLong(offset + kTimeOffset, time);
+        buffer.putShort(offset + kEventOffset, (short)event);
+        buffer.putShort(offset + kFlagsOffset, (short)flags);
+        buffer.putInt(offset + kThreadOffset, threadID);
+        buffer.putInt(offset + kQueueOffset, queueID);
+        buffer.putInt(offset + kOtherOffset, otherID);
+        buffer.putLong(offset + kValueOffset, value);
+        if(++nextSlot == capacity) { nextSlot = 0; }
+        buffer.putLong(kCountOffset, ++numRecords);
+    }
+
+    /** Ask the operating system to write the mapped pages out now. */
+    public void force() {
+        if(writable) { buffer.force(); }
+    }
+
+    /** Write the trace out and release the file. */
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /** Return the number of records ever written to this trace. */
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    /** Return the sequence number of the oldest record still held. */
+    public long getOldestRecord() {
+        return Math.max(0, numRecords - capacity);
+    }
+
+    public int getEvent(long record) {
+        return buffer.getShort(offsetOf(record) + kEventOffset);
+    }
+
+    public int getFlags(long record) {
+        return buffer.getShort(offsetOf(record) + kFlagsOffset);
+    }
+
+    public long getTime(long record) {
+        return buffer.getLong(offsetOf(record) + kTimeOffset);
+    }
+
+    public int getThreadID(long record) {
+        return buffer.getInt(offsetOf(record) + kThreadOffset);
+    }
+
+    public int getQueueID(long record) {
+        return buffer.getInt(offsetOf(record) + kQueueOffset);
+    }
+
+    public int getOtherID(long record) {
+        return buffer.getInt(offsetOf(record) + kOtherOffset);
+    }
+
+    public long getValue(long record) {
+        return buffer.getLong(offsetOf(record) + kValueOffset);
+    }
+
+    /** Return the buffer offset of record, which must still be held. */
+    private int offsetOf(long record) {
+        Lib.assertTrue(record >= getOldestRecord() && record < numRecords);
+        return kHeaderSize + (int)(record % capacity) * kRecordSize;
+    }
+
+    /** Mapped ring file */
+    private final MappedByteBuffer buffer;
+    private final FileChannel channel;
+
+    /** Number of records the ring holds */
+    private final int capacity;
+
+    /** False for a trace opened with open() */
+    private final boolean writable;
+
+    /** Number of records ever written */
+    private long numRecords = 0;
+
+    /** Ring slot the next record goes to */
+    private int nextSlot = 0;
+
+    /** Thread or queue is not part of this event. */
+    public static final int kNone = -1;
+
+    /** Event codes. */
+    public static final int kEventWaitForAccess = 1;
+    public static final int kEventAcquire = 2;
+    public static final int kEventNextThread = 3;
+    public static final int kEventReceiveOffer = 4;
+    public static final int kEventRevokeDonation = 5;
+    public static final int kEventSetPriority = 6;
+
+    /** Flag set on events for queues that transfer priority. */
+    public static final int kFlagTransferPriority = 1;
+
+    /** File format. */
+    public static final int kMagic = 0x50535452;
+    public static final int kVersion = 1;
+    public static final int kHeaderSize = 64;
+    public static final int kRecordSize = 32;
+
+    /** Header field offsets. */
+    private static final int kMagicOffset = 0;
+    private static final int kVersionOffset = 4;
+    private static final int kRecordSizeOffset = 8;
+    private static final int kCapacityOffset = 12;
+    private static final int kCountOffset = 16;
+
+    /** Record field offsets. */
+    private static final int kTimeOffset = 0;
+    private static final int kEventOffset = 8;
+    private static final int kFlagsOffset = 10;
+    private static final int kThreadOffset = 12;
+    private static final int kQueueOffset = 16;
+    private static final int kOtherOffset = 20;
+    private static final int kValueOffset = 24;
+
+}
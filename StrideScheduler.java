@@ -0,0 +1,314 @@
+package nachos.threads;
+import nachos.machine.*;
+import java.util.Arrays;
+
+/**
+ * A scheduler that chooses threads by stride scheduling.
+ *
+ * <p>
+ * Threads hold tickets exactly as in a LotteryScheduler, and tickets are
+ * transferred through locks and joins the same way, adding rather than
+ * taking the maximum. Instead of holding a lottery, each queue gives every
+ * waiter a stride inversely proportional to its tickets and a pass value,
+ * and always dequeues the waiter with the smallest pass, charging it one
+ * stride. The choice is deterministic and a thread's share of dequeues
+ * stays within one stride of its ticket share over any window, where a
+ * lottery only gets there in expectation.
+ *
+ * <p>
+ * Waiters are kept in a binary heap ordered by pass, so enqueue, dequeue
+ * and a change of tickets are O(log n) in the number of waiters.
+ *
+ * <p>
+ * Pass values are relative to the queue's virtual time, the pass of the
+ * last thread dequeued. A thread leaving a queue remembers how far ahead
+ * of virtual time it was and resumes from there when it next waits on the
+ * same queue, so yielding and waiting again does not reset its position.
+ */
+public class StrideScheduler extends LotteryScheduler
+{
+    /**
+     * Construct a new StrideScheduler running under Nachos.
+     */
+    public StrideScheduler() {
+        super();
+    }
+
+    /**
+     * Construct a new StrideScheduler.
+     *
+     * @param host  Environment providing the interrupt guard, clock and
+     *              ready queue identity.
+     */
+    public StrideScheduler(Host host) {
+        super(host);
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should
+     * transfer tickets from waiting threads
+     * to the owning thread.
+     * @return a new stride thread queue.
+     */
+    @Override
+    protected PriorityQueue createQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Allocate a new ThreadState3, which remembers its position on the last
+     * queue it left.
+     *
+     * @param thread that the ThreadState3 belongs to, or null if headless.
+     * @return ThreadState3 for this thread.
+     */
+    @Override
+    protected ThreadState createThreadState(KThread thread) {
+        return new ThreadState3(thread);
+    }
+
+    public static void selfTest() {
+        StrideSchedulerTest.runall();
+    }
+
+    /**
+     * Return the stride of a thread holding tickets tickets. Threads with
+     * more than kStride1 tickets all get the smallest stride, 1.
+     */
+    protected static long getStride(long tickets) {
+        return Math.max(1, kStride1 / tickets);
+    }
+
+    /**
+     * Stride of a thread holding one ticket. Small enough that a pass
+     * offset (never more than one stride) times a stride cannot overflow
+     * when a waiter's tickets change.
+     */
+    protected static final long kStride1 = 1L << 30;
+
+
+    /**
+     * StrideQueue inner class. Extends LotteryQueue, replacing the lottery
+     * with a heap of waiters ordered by pass.
+     *
+     * @see LotteryQueue
+     */
+    protected class StrideQueue extends LotteryQueue
+    {
+        StrideQueue(boolean transferPriority) {
+            super(transferPriority);
+        }
+
+        /**
+         * Return the waiter with the smallest pass, or null if the queue is
+         * empty.
+         */
+        @Override
+        protected ThreadState chooseNextThread() {
+            return heapSize == 0 ? null : heap[0].getOwner();
+        }
+
+        /**
+         * Add a thread to this queue. Its pass is virtual time plus what it
+         * had left when it last left this queue, or one stride if it is new
+         * here.
+         */
+        @Override
+        protected boolean addToLevel(int priority, ThreadState.QueueLink queueLink) {
+            if(!super.addToLevel(priority, queueLink)) { return false; }
+            ThreadState3.StrideLink link = (ThreadState3.StrideLink)queueLink;
+            ThreadState3 owner = (ThreadState3)link.getOwner();
+            link.stride = getStride(owner.getTicketCount());
+            long remain =
+                owner.remainQueue == this ? owner.remain : link.stride;
+            owner.remainQueue = null;
+            link.pass = virtualTime + remain;
+
+            if(heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * heap.length);
+            }
+            link.strideIndex = heapSize;
+            heap[heapSize++] = link;
+            siftUp(link.strideIndex);
+            return true;
+        }
+
+        /**
+         * Remove a thread from this queue, charging it one stride. Virtual
+         * time advances to its pass, and the distance it is left ahead of
+         * virtual time is kept on its ThreadState3.
+         */
+        @Override
+        protected boolean removeFromLevel(ThreadState.QueueLink queueLink) {
+            if(!super.removeFromLevel(queueLink)) { return false; }
+            ThreadState3.StrideLink link = (ThreadState3.StrideLink)queueLink;
+            if(link.pass - virtualTime > 0) {
+                virtualTime = link.pass;
+            }
+            ThreadState3 owner = (ThreadState3)link.getOwner();
+            owner.remain = link.pass + link.stride - virtualTime;
+            owner.remainQueue = this;
+            removeFromHeap(link);
+            return true;
+        }
+
+        /**
+         * Remove a thread migrating to another queue. It has not been
+         * dequeued to run, so virtual time stays where it is and the thread
+         * is not charged a stride.
+         */
+        @Override
+        protected boolean removeMigratingWaiter(ThreadState.QueueLink queueLink) {
+            if(!super.removeFromLevel(queueLink)) { return false; }
+            removeFromHeap((ThreadState3.StrideLink)queueLink);
+            return true;
+        }
+
+        /**
+         * Return the waiter with the smallest pass among those allowed to
+         * run on cpu. This is the top of the heap unless affinity rules it
+         * out, in which case the heap is scanned.
+         */
+        @Override
+        public ThreadState findEligible(int cpu) {
+            if(heapSize == 0) { return null; }
+            if(heap[0].getOwner().canRunOn(cpu)) { return heap[0].getOwner(); }
+            ThreadState3.StrideLink best = null;
+            for(int i = 1; i < heapSize; i++) {
+                if(heap[i].getOwner().canRunOn(cpu)
+                    && (best == null || precedes(heap[i], best))) {
+                    best = heap[i];
+                }
+            }
+            return best == null ? null : best.getOwner();
+        }
+
+        /** Take link out of the heap, which it must be in. */
+        private void removeFromHeap(ThreadState3.StrideLink link) {
+            int index = link.strideIndex;
+            ThreadState3.StrideLink last = heap[--heapSize];
+            heap[heapSize] = null;
+            link.strideIndex = kNotInHeap;
+            if(last != link) {
+                heap[index] = last;
+                last.strideIndex = index;
+                siftDown(index);
+                siftUp(last.strideIndex);
+            }
+        }
+
+        /**
+         * Bring a waiter's stride up to date with its tickets, scaling the
+         * distance of its pass from virtual time by the change in stride so
+         * that the part of its stride already waited out is kept.
+         */
+        @Override
+        protected void updateTickets(ThreadState.QueueLink queueLink) {
+            super.updateTickets(queueLink);
+            ThreadState3.StrideLink link = (ThreadState3.StrideLink)queueLink;
+            if(link == null || link.strideIndex == kNotInHeap) { return; }
+            long newStride =
+                getStride(((ThreadState2)link.getOwner()).getTicketCount());
+            if(newStride == link.stride) { return; }
+            link.pass =
+                virtualTime + (link.pass - virtualTime) * newStride / link.stride;
+            link.stride = newStride;
+            siftDown(link.strideIndex);
+            siftUp(link.strideIndex);
+            invalidateCachedThread();
+        }
+
+        /** Return true if a is ahead of b in the heap. */
+        private boolean precedes(ThreadState3.StrideLink a, ThreadState3.StrideLink b) {
+            return a.pass - b.pass < 0;
+        }
+
+        private void siftUp(int index) {
+            ThreadState3.StrideLink link = heap[index];
+            while(index > 0) {
+                int parent = (index - 1) >> 1;
+                if(!precedes(link, heap[parent])) { break; }
+                heap[index] = heap[parent];
+                heap[index].strideIndex = index;
+                index = parent;
+            }
+            heap[index] = link;
+            link.strideIndex = index;
+        }
+
+        private void siftDown(int index) {
+            ThreadState3.StrideLink link = heap[index];
+            while(true) {
+                int child = 2 * index + 1;
+                if(child >= heapSize) { break; }
+                if(child + 1 < heapSize && precedes(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if(!precedes(heap[child], link)) { break; }
+                heap[index] = heap[child];
+                heap[index].strideIndex = index;
+                index = child;
+            }
+            heap[index] = link;
+            link.strideIndex = index;
+        }
+
+        /* StrideQueue class properties */
+
+        /** Waiters ordered by pass, smallest first */
+        private ThreadState3.StrideLink[] heap =
+            new ThreadState3.StrideLink[kInitialStrideHeapSize];
+        private int heapSize = 0;
+
+        /** Pass of the last thread dequeued */
+        private long virtualTime = 0;
+
+        private static final int kInitialStrideHeapSize = 4;
+    } // End of StrideQueue class
+
+
+    /**
+     * ThreadState3 inner class.
+     * Extends ThreadState2
+     *
+     * @see LotteryScheduler.ThreadState2
+     */
+    protected class ThreadState3 extends ThreadState2
+    {
+        ThreadState3(KThread inThread) {
+            super(inThread);
+        }
+
+        /** Queue this thread last left, while it is not waiting on it */
+        protected StrideQueue remainQueue = null;
+
+        /** Distance ahead of remainQueue's virtual time when it left */
+        protected long remain;
+
+        /** Waiters on a StrideQueue also carry their pass and stride. */
+        @Override
+        protected QueueLink createQueueLink(PriorityQueue waitQueue) {
+            return new StrideLink(waitQueue);
+        }
+
+        /**
+         * StrideLink inner class. Extends LotteryLink
+         *
+         * Adds the pass, stride and heap position of this thread in the
+         * StrideQueue it is waiting on.
+         */
+        protected class StrideLink extends LotteryLink
+        {
+            StrideLink(PriorityQueue inQueue) {
+                super(inQueue);
+            }
+
+            /** Pass, stride and heap position in a StrideQueue */
+            long pass;
+            long stride;
+            int strideIndex = kNotInHeap;
+        } // End of StrideLink class
+    } // End of ThreadState3 class
+} // End of StrideScheduler class
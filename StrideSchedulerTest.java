@@ -0,0 +1,198 @@
+/**
+ * Test the functionality of the StrideScheduler class.
+ *
+ * Calling symantics: - Run a single test contained herein:
+ * StrideSchedulerTest.testx() for test number x.  - Run all tests contained
+ * hereing: StrideSchedulerTest.runall().
+ *
+ * Every test runs a headless scheduler (see PriorityScheduler.HeadlessHost),
+ * so no KThreads are forked and dispatch order is checked exactly.
+ *
+ * To see DEBUGGING output on the console, run nachos with the -d S switch
+ * (along with any other debugging flags, of course.
+ */
+package nachos.threads;
+import nachos.threads.*;
+import nachos.machine.*;
+import java.io.IOException;
+
+public class StrideSchedulerTest
+{
+    // Threads holding 1, 2 and 3 tickets take turns on a plain queue. Over
+    // every window each must get its ticket share of dequeues to within one.
+    public static boolean test1()
+    {
+        Lib.debug(dbgTesting, "[ TEST1 ]: Entered TEST1");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        StrideScheduler scheduler = new StrideScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue queue =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.ThreadState[] threads = new PriorityScheduler.ThreadState[3];
+        long[] dequeues = new long[threads.length];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = scheduler.newThreadState();
+            threads[i].setPriority(i + 1);
+            queue.waitForAccess(threads[i]);
+        }
+
+        boolean fair = true;
+        for(int n = 1; n <= 600; n++) {
+            PriorityScheduler.ThreadState next = queue.nextThreadState();
+            for(int i = 0; i < threads.length; i++) {
+                if(threads[i] == next) { dequeues[i]++; }
+                long share = n * (i + 1) / 6;
+                fair = fair && Math.abs(dequeues[i] - share) <= 1;
+            }
+            queue.waitForAccess(next);
+        }
+        host.restoreInterrupts(st);
+
+        if(fair && dequeues[0] == 100 && dequeues[1] == 200 && dequeues[2] == 300)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST1 ]: ERROR: Failed test1. fair " + fair + " dequeues " + dequeues[0] + "/" + dequeues[1] + "/" + dequeues[2]);
+        return EXIT_FAILURE;
+    }
+
+    // A one ticket thread holding a lock wanted by a five ticket thread runs
+    // with six tickets against a one ticket thread, and drops back to an
+    // equal share once the lock is handed over.
+    public static boolean test2()
+    {
+        Lib.debug(dbgTesting, "[ TEST2 ]: Entered TEST2");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        StrideScheduler scheduler = new StrideScheduler(host);
+        boolean st = host.disableInterrupts();
+        PriorityScheduler.PriorityQueue ready =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(false);
+        PriorityScheduler.PriorityQueue lock =
+            (PriorityScheduler.PriorityQueue)scheduler.newThreadQueue(true);
+        PriorityScheduler.ThreadState holder = scheduler.newThreadState();
+        PriorityScheduler.ThreadState other = scheduler.newThreadState();
+        PriorityScheduler.ThreadState waiter = scheduler.newThreadState();
+        waiter.setPriority(5);
+
+        lock.acquire(holder);
+        ready.waitForAccess(holder);
+        ready.waitForAccess(other);
+        lock.waitForAccess(waiter);
+        int donated = countDequeues(ready, holder, 70);
+        lock.nextThreadState();
+        int returned = countDequeues(ready, holder, 70);
+        host.restoreInterrupts(st);
+
+        if(donated == 60 && returned == 35)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST2 ]: ERROR: Failed test2. donated " + donated + " returned " + returned);
+        return EXIT_FAILURE;
+    }
+
+    // Stride choices are deterministic, so a recorded random workload must
+    // replay exactly into a fresh StrideScheduler.
+    public static boolean test3()
+    {
+        Lib.debug(dbgTesting, "[ TEST3 ]: Entered TEST3");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        boolean matched = false;
+
+        try {
+            String fileName = PrioritySchedulerTest.recordWorkload(
+                new StrideScheduler(host), host, replayOps
+            );
+            SchedulerTrace trace = SchedulerTrace.open(fileName);
+            PriorityScheduler.HeadlessHost replayHost = new PriorityScheduler.HeadlessHost();
+            SchedulerReplay replay = new SchedulerReplay(
+                trace, new StrideScheduler(replayHost), replayHost, 0
+            );
+            matched = replay.run() && replay.getNumDecisions() > 0;
+            trace.close();
+        } catch(IOException e) {
+            System.out.println("[ TEST3 ]: ERROR: " + e);
+        }
+
+        if(matched)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST3 ]: ERROR: Failed test3. replay did not match");
+        return EXIT_FAILURE;
+    }
+
+    // A CPU stealing from a stride run queue takes the eligible waiter with
+    // the smallest pass, not the longest waiting one, and the steal does
+    // not move the victim queue's virtual time on to that waiter's pass.
+    public static boolean test4()
+    {
+        Lib.debug(dbgTesting, "[ TEST4 ]: Entered TEST4");
+        PriorityScheduler.HeadlessHost host = new PriorityScheduler.HeadlessHost();
+        StrideScheduler scheduler = new StrideScheduler(host);
+        boolean st = host.disableInterrupts();
+        RunQueueSet cpus = new RunQueueSet(scheduler, 2);
+        PriorityScheduler.ThreadState pinned = scheduler.newThreadState();
+        PriorityScheduler.ThreadState slow = scheduler.newThreadState();
+        PriorityScheduler.ThreadState fast = scheduler.newThreadState();
+        PriorityScheduler.ThreadState late = scheduler.newThreadState();
+        pinned.setPriority(4);
+        slow.setPriority(1);
+        fast.setPriority(2);
+        late.setPriority(8);
+        pinned.setAffinity(1L);
+        slow.setAffinity(1L);
+        fast.setAffinity(1L);
+        late.setAffinity(1L);
+
+        cpus.ready(pinned);
+        cpus.ready(slow);
+        cpus.ready(fast);
+        slow.setAffinity(PriorityScheduler.kAllCPUs);
+        fast.setAffinity(PriorityScheduler.kAllCPUs);
+        boolean stolen = cpus.nextThread(1) == fast && cpus.getSteals() == 1;
+
+        cpus.ready(late);
+        boolean notCharged =
+            cpus.nextThread(0) == late
+            && cpus.nextThread(0) == pinned
+            && cpus.nextThread(0) == slow;
+        host.restoreInterrupts(st);
+
+        if(stolen && notCharged)
+            return EXIT_SUCCESS;
+
+        System.out.println("[ TEST4 ]: ERROR: Failed test4. stolen " + stolen + " notCharged " + notCharged);
+        return EXIT_FAILURE;
+    }
+
+    // Dequeue and requeue count times, returning how often ts was chosen
+    private static int countDequeues(
+        PriorityScheduler.PriorityQueue queue,
+        PriorityScheduler.ThreadState ts,
+        int count) {
+        int chosen = 0;
+        for(int i = 0; i < count; i++) {
+            PriorityScheduler.ThreadState next = queue.nextThreadState();
+            if(next == ts) { chosen++; }
+            queue.waitForAccess(next);
+        }
+        return chosen;
+    }
+
+    // Run all tests defined here
+    public static void runall()
+    {
+        Lib.assertTrue(test1());
+        System.out.println("[ TEST1 ]: PASSED");
+        Lib.assertTrue(test2());
+        System.out.println("[ TEST2 ]: PASSED");
+        Lib.assertTrue(test3());
+        System.out.println("[ TEST3 ]: PASSED");
+        Lib.assertTrue(test4());
+        System.out.println("[ TEST4 ]: PASSED");
+    }
+
+    // Global configuration and debug parameters
+    private static final char dbgTesting = 'S';
+    private static final boolean EXIT_SUCCESS = true;
+    private static final boolean EXIT_FAILURE = false;
+    private static final int replayOps = 20000;
+}